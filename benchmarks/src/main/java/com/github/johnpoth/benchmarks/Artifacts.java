@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Creates artifacts to transfer. Real artifacts are mostly JARs, which are already compressed: most of the content is
+ * random with a share of text in between, so compression has about as much work and as little gain as with a JAR.
+ */
+public final class Artifacts {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // one block in this many is text
+    private static final int TEXT_BLOCK_RATIO = 4;
+    private static final byte[] TEXT = ("<project><modelVersion>4.0.0</modelVersion><groupId>com.github.johnpoth</groupId>"
+            + "<artifactId>benchmarks</artifactId><version>1.0</version></project>\n").getBytes(StandardCharsets.UTF_8);
+
+    private Artifacts() {
+    }
+
+    /**
+     * @return a new temporary file of the given size, the same for a given size from one run to the next
+     */
+    public static Path create(long size) throws IOException {
+        Path file = Files.createTempFile("artifact", ".jar");
+        Random random = new Random(size);
+        byte[] block = new byte[BLOCK_SIZE];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long written = 0;
+            for (int i = 0; written < size; i++) {
+                if (i % TEXT_BLOCK_RATIO == 0) {
+                    for (int offset = 0; offset < block.length; offset += TEXT.length) {
+                        System.arraycopy(TEXT, 0, block, offset, Math.min(TEXT.length, block.length - offset));
+                    }
+                } else {
+                    random.nextBytes(block);
+                }
+                int length = (int) Math.min(block.length, size - written);
+                out.write(block, 0, length);
+                written += length;
+            }
+        }
+        return file;
+    }
+}
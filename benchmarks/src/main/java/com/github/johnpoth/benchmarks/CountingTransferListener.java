@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferListener;
+
+/**
+ * Stands in for Maven's listener, which does little more than adding up the bytes transferred
+ */
+public class CountingTransferListener implements TransferListener {
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public void transferInitiated(TransferEvent transferEvent) {
+    }
+
+    @Override
+    public void transferStarted(TransferEvent transferEvent) {
+    }
+
+    @Override
+    public void transferProgress(TransferEvent transferEvent, byte[] buffer, int length) {
+        bytes.addAndGet(length);
+    }
+
+    @Override
+    public void transferCompleted(TransferEvent transferEvent) {
+    }
+
+    @Override
+    public void transferError(TransferEvent transferEvent) {
+    }
+
+    @Override
+    public void debug(String message) {
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import com.github.johnpoth.DockerDistributionWagon;
+import com.github.johnpoth.FilterProgressOutputStream;
+import com.github.johnpoth.LayerBuffer;
+import com.github.johnpoth.LayerCompression;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import com.google.cloud.tools.jib.hash.CountingDigestOutputStream;
+import com.google.cloud.tools.jib.hash.Digests;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferEventSupport;
+import org.apache.maven.wagon.resource.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Packing an artifact into a layer the way {@link DockerDistributionWagon#put} does, unpacking it the way
+ * {@link DockerDistributionWagon#get} does, and computing its digest, without any registry involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LayerBenchmark {
+
+    private static final long IN_MEMORY_LAYER_LIMIT = 8 * 1024 * 1024;
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    private long size;
+
+    @Param({"Gzip", "Zstd", "None"})
+    private LayerCompression compression;
+
+    private Path artifact;
+    private Path layer;
+    private Path destination;
+    private final TransferEventSupport transferEventSupport = new TransferEventSupport();
+    private final DockerDistributionWagon wagon = new DockerDistributionWagon();
+    private final Resource resource = new Resource("org/example/benchmark/1.0/benchmark-1.0.jar");
+
+    @Setup
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        artifact = Artifacts.create(size);
+        layer = Files.createTempFile("layer", ".tar");
+        destination = Files.createTempFile("artifact", ".jar");
+        try (OutputStream out = Files.newOutputStream(layer)) {
+            pack(out, null);
+        }
+        // Maven always has a listener, the progress events are part of the cost
+        transferEventSupport.addTransferListener(new CountingTransferListener());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(artifact);
+        Files.deleteIfExists(layer);
+        Files.deleteIfExists(destination);
+    }
+
+    @Benchmark
+    public BlobDescriptor pack(Blackhole blackhole) throws IOException, NoSuchAlgorithmException {
+        try (LayerBuffer buffer = new LayerBuffer(IN_MEMORY_LAYER_LIMIT)) {
+            CountingDigestOutputStream out = new CountingDigestOutputStream(buffer.getOutputStream());
+            pack(out, blackhole);
+            return out.computeDigest();
+        }
+    }
+
+    @Benchmark
+    public long unpack() throws IOException {
+        try (TarArchiveInputStream tarIn = new TarArchiveInputStream(compression.decompress(Files.newInputStream(layer)));
+             FileChannel output = FileChannel.open(destination, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FilterProgressOutputStream progress = new FilterProgressOutputStream(Channels.newOutputStream(output),
+                     transferEventSupport, wagon, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET)) {
+            tarIn.getNextEntry();
+            return IOUtils.copy(tarIn, progress);
+        }
+    }
+
+    @Benchmark
+    public BlobDescriptor digest() throws IOException {
+        try (InputStream in = Files.newInputStream(artifact)) {
+            return Digests.computeDigest(in);
+        }
+    }
+
+    /**
+     * Same streams as a put: the layer digest, the compression, the uncompressed layer digest, the TAR and the
+     * checksums of the artifact
+     *
+     * @param blackhole null if the digests aren't needed
+     */
+    private void pack(OutputStream out, Blackhole blackhole) throws IOException, NoSuchAlgorithmException {
+        OutputStream compressedOut = compression.compress(out, -1);
+        CountingDigestOutputStream tarDigestOut = new CountingDigestOutputStream(compressedOut);
+        TarArchiveOutputStream tarOut = new TarArchiveOutputStream(tarDigestOut, StandardCharsets.UTF_8.name());
+        tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        TarArchiveEntry entry = new TarArchiveEntry(artifact.toFile());
+        entry.setName(artifact.getFileName().toString());
+        tarOut.putArchiveEntry(entry);
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        try (InputStream in = new DigestInputStream(new DigestInputStream(Files.newInputStream(artifact), sha1), md5)) {
+            IOUtils.copy(in, tarOut);
+        }
+        tarOut.closeArchiveEntry();
+        tarOut.finish();
+        compressedOut.close();
+        if (blackhole != null) {
+            blackhole.consume(tarDigestOut.computeDigest());
+            blackhole.consume(sha1.digest());
+            blackhole.consume(md5.digest());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import com.github.johnpoth.ByteArrayOutputStreamBlob;
+import com.github.johnpoth.DockerDistributionWagon;
+import com.github.johnpoth.FilterProgressOutputStream;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferEventSupport;
+import org.apache.maven.wagon.resource.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The streams every transferred byte goes through: in-memory layers written to the registry connection and the
+ * progress reporting of gets. Data goes to a null stream so only the streams themselves are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"1024", "1048576", "8388608"})
+    private int size;
+
+    // the chunks copies are made of, IOUtils copies 8KB at a time and Jib's uploads 32KB
+    @Param({"8192", "32768"})
+    private int chunkSize;
+
+    private ByteArrayOutputStreamBlob blob;
+    private byte[] data;
+    private final TransferEventSupport transferEventSupport = new TransferEventSupport();
+    private final DockerDistributionWagon wagon = new DockerDistributionWagon();
+    private final Resource resource = new Resource("org/example/benchmark/1.0/benchmark-1.0.jar");
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        ByteArrayOutputStream layer = new ByteArrayOutputStream(size);
+        layer.write(data);
+        blob = new ByteArrayOutputStreamBlob(layer);
+        transferEventSupport.addTransferListener(new CountingTransferListener());
+    }
+
+    @Benchmark
+    public BlobDescriptor blobWriteTo(Blackhole blackhole) throws IOException {
+        return blob.writeTo(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public void progressAlignedWrites(Blackhole blackhole) throws IOException {
+        writeProgress(blackhole, 0);
+    }
+
+    /**
+     * Writes which don't start at the beginning of the caller's buffer, e.g when a stream buffers what it copies
+     */
+    @Benchmark
+    public void progressOffsetWrites(Blackhole blackhole) throws IOException {
+        writeProgress(blackhole, 1);
+    }
+
+    private void writeProgress(Blackhole blackhole, int firstOffset) throws IOException {
+        try (FilterProgressOutputStream out = new FilterProgressOutputStream(new BlackholeOutputStream(blackhole),
+                transferEventSupport, wagon, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET)) {
+            for (int offset = firstOffset; offset < size; offset += chunkSize) {
+                out.write(data, offset, Math.min(chunkSize, size - offset));
+            }
+        }
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        private BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
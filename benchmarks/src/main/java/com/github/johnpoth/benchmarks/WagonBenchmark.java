@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth.benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import com.github.johnpoth.DockerDistributionWagon;
+import com.github.johnpoth.RegistryStub;
+import org.apache.maven.wagon.WagonException;
+import org.apache.maven.wagon.repository.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Puts and gets through the wagon against {@link RegistryStub}, from packing the layer to the last registry request.
+ *
+ * The stub keeps blobs in memory, which is why sizes stop short of what {@link LayerBenchmark} goes up to. Run with
+ * {@code -p size=1073741824 -jvmArgs -Xmx4g} for larger artifacts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class WagonBenchmark {
+
+    private static final String RESOURCE = "org/example/benchmark/1.0/benchmark-1.0.jar";
+
+    @Param({"1024", "1048576", "67108864"})
+    private long size;
+
+    private RegistryStub registry;
+    private DockerDistributionWagon wagon;
+    private Path artifact;
+    private Path destination;
+    private Path cacheDirectory;
+    private int artifactCount;
+
+    @Setup
+    public void setUp() throws IOException, WagonException, ReflectiveOperationException {
+        registry = new RegistryStub();
+        artifact = Artifacts.create(size);
+        destination = Files.createTempFile("artifact", ".jar");
+        cacheDirectory = Files.createTempDirectory("wagon-cache");
+        wagon = new DockerDistributionWagon();
+        configure("cacheDirectory", cacheDirectory.toFile());
+        // every put would otherwise mount the blob of the previous one, the stub doesn't so it's uploaded anyway
+        configure("knownBlobCache", false);
+        wagon.connect(new Repository("benchmark", "docker://" + registry.getRegistry() + "/benchmark"));
+        wagon.put(artifact.toFile(), RESOURCE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, WagonException {
+        try {
+            wagon.disconnect();
+        } finally {
+            registry.close();
+            Files.deleteIfExists(artifact);
+            Files.deleteIfExists(destination);
+            try (Stream<Path> files = Files.walk(cacheDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Each put goes to an image repository of its own: registries skip uploading blobs a repository already has
+     */
+    @Benchmark
+    public void put() throws WagonException {
+        int artifactId = ++artifactCount;
+        wagon.put(artifact.toFile(), "org/example/benchmark" + artifactId + "/1.0/benchmark" + artifactId + "-1.0.jar");
+    }
+
+    @Benchmark
+    public void get() throws WagonException {
+        wagon.get(RESOURCE, destination.toFile());
+    }
+
+    /**
+     * Sets the wagon's configuration the way Maven does from the settings' server configuration
+     */
+    private void configure(String name, Object value) throws ReflectiveOperationException {
+        Field field = DockerDistributionWagon.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(wagon, value);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.api.buildplan.ImageFormat;
+import com.google.cloud.tools.jib.image.json.ManifestTemplate;
+import com.google.cloud.tools.jib.image.json.OciManifestTemplate;
+import com.google.cloud.tools.jib.image.json.V22ManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplate;
+
+/**
+ * Manifest of an artifact image.
+ *
+ * Same as Jib's {@link V22ManifestTemplate} and {@link OciManifestTemplate} except that layers don't have to be gzipped
+ * and can carry annotations, which Jib only lets us read. Annotations describe the artifact so that clients can decide
+ * whether they need it from the manifest alone.
+ */
+public class ArtifactManifestTemplate implements ManifestTemplate {
+
+    public static final String ANNOTATION_CREATED = "org.opencontainers.image.created";
+    public static final String ANNOTATION_TITLE = "org.opencontainers.image.title";
+    public static final String ANNOTATION_SIZE = "com.github.johnpoth.wagon.size";
+    public static final String ANNOTATION_SHA1 = "com.github.johnpoth.wagon.sha1";
+    public static final String ANNOTATION_MD5 = "com.github.johnpoth.wagon.md5";
+    // files of a layer packing several of them, one path relative to the directory per line
+    public static final String ANNOTATION_FILES = "com.github.johnpoth.wagon.files";
+    // digests of the layers holding the files of the previous annotation, one per line in the same order
+    public static final String ANNOTATION_DIGESTS = "com.github.johnpoth.wagon.digests";
+
+    private static final String V22_CONTAINER_CONFIGURATION_MEDIA_TYPE = "application/vnd.docker.container.image.v1+json";
+    private static final String OCI_CONTAINER_CONFIGURATION_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+
+    private final int schemaVersion = 2;
+    private final String mediaType;
+    private ContentDescriptorTemplate config;
+    private final List<ContentDescriptorTemplate> layers = new ArrayList<>();
+
+    // not serialized, the image format decides the media types of the descriptors
+    private final transient ImageFormat imageFormat;
+
+    public ArtifactManifestTemplate(ImageFormat imageFormat) {
+        this.imageFormat = imageFormat;
+        this.mediaType = imageFormat == ImageFormat.OCI ? OciManifestTemplate.MANIFEST_MEDIA_TYPE : V22ManifestTemplate.MANIFEST_MEDIA_TYPE;
+    }
+
+    @Override
+    public int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    @Override
+    public String getManifestMediaType() {
+        return mediaType;
+    }
+
+    public ContentDescriptorTemplate getContainerConfiguration() {
+        return config;
+    }
+
+    public List<ContentDescriptorTemplate> getLayers() {
+        return layers;
+    }
+
+    public void setContainerConfiguration(long size, DescriptorDigest digest) {
+        String configMediaType = imageFormat == ImageFormat.OCI ? OCI_CONTAINER_CONFIGURATION_MEDIA_TYPE : V22_CONTAINER_CONFIGURATION_MEDIA_TYPE;
+        this.config = new ContentDescriptorTemplate(configMediaType, size, digest, null);
+    }
+
+    /**
+     * @param annotations can be null
+     */
+    public void addLayer(LayerCompression compression, long size, DescriptorDigest digest, Map<String, String> annotations) {
+        this.layers.add(new ContentDescriptorTemplate(compression.getMediaType(imageFormat), size, digest, annotations));
+    }
+
+    public static class ContentDescriptorTemplate implements JsonTemplate {
+
+        private final String mediaType;
+        private final DescriptorDigest digest;
+        private final long size;
+        private final Map<String, String> annotations;
+
+        private ContentDescriptorTemplate(String mediaType, long size, DescriptorDigest digest, Map<String, String> annotations) {
+            this.mediaType = mediaType;
+            this.size = size;
+            this.digest = digest;
+            this.annotations = annotations;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public DescriptorDigest getDigest() {
+            return digest;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Map<String, String> getAnnotations() {
+            return annotations;
+        }
+    }
+}
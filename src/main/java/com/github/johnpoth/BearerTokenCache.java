@@ -0,0 +1,370 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.cloud.tools.jib.api.Credential;
+import com.google.cloud.tools.jib.http.Authorization;
+import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.http.Request;
+import com.google.cloud.tools.jib.http.Response;
+import com.google.cloud.tools.jib.http.ResponseException;
+import com.google.cloud.tools.jib.json.JsonTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches registry authorizations across image repositories.
+ *
+ * With the default naming strategies every Maven file lives in its own image repository, so going through Jib's
+ * per repository authentication means one trip to the token server per file. This cache talks to the token server
+ * directly using the connection's {@link FailoverHttpClient}, asks for several repository scopes at once when we know
+ * more repositories are about to be used, and keeps the tokens until their {@code expires_in} runs out.
+ */
+public class BearerTokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BearerTokenCache.class);
+
+    private static final Pattern CHALLENGE_PARAMETER = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    // the Distribution spec says tokens without expires_in should be considered valid for 60 seconds
+    private static final int DEFAULT_EXPIRES_IN = 60;
+    private static final String CATALOG_SCOPE = "registry:catalog:*";
+    static final String CHECKED_JIB_VERSION = "0.20.0";
+
+    private static final AtomicBoolean REFLECTION_WARNED = new AtomicBoolean();
+
+    private final FailoverHttpClient client;
+    private final Credential credential;
+    private final ConcurrentMap<String, Challenge> challenges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Token> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * @param credential can be null in which case anonymous tokens are requested
+     */
+    public BearerTokenCache(FailoverHttpClient client, Credential credential) {
+        this.client = client;
+        this.credential = credential;
+    }
+
+    /**
+     * Returns an authorization that can pull from and push to the given repository.
+     *
+     * @param batch other repositories of the same registry that are about to be used. If a new token is needed, it will
+     *              be requested for all of them at once
+     * @return empty if the registry doesn't need authorization or doesn't support bearer tokens
+     */
+    public Optional<Authorization> getAuthorization(String registry, String repository, Collection<String> batch) throws IOException {
+        Challenge challenge = getChallenge(registry);
+        if (challenge == null) {
+            return Optional.empty();
+        }
+        Token token = tokens.get(key(registry, repository));
+        if (token == null || token.isExpired()) {
+            Set<String> repositories = new LinkedHashSet<>();
+            repositories.add(repository);
+            for (String other : batch) {
+                Token cached = tokens.get(key(registry, other));
+                if (cached == null || cached.isExpired()) {
+                    repositories.add(other);
+                }
+            }
+            token = fetchToken(challenge, toScopes(repositories));
+            for (String other : repositories) {
+                tokens.put(key(registry, other), token);
+            }
+        }
+        return Optional.of(token.authorization);
+    }
+
+    /**
+     * @return when the token {@link #getAuthorization} returns for the given repository expires, in milliseconds since
+     * the epoch, {@link RegistryClientPool#NEVER} if there is none
+     */
+    public long getExpiresAt(String registry, String repository) {
+        Token token = tokens.get(key(registry, repository));
+        return token != null ? token.expiresAt : RegistryClientPool.NEVER;
+    }
+
+    /**
+     * Returns an authorization that can push to the repository and pull from the repository a blob is about to be mounted
+     * from.
+     *
+     * Mounting requires pull access to the source repository, which the tokens of {@link #getAuthorization} don't have.
+     *
+     * @return empty if the registry doesn't need authorization or doesn't support bearer tokens
+     */
+    public Optional<Authorization> getMountAuthorization(String registry, String repository, String sourceRepository) throws IOException {
+        Challenge challenge = getChallenge(registry);
+        if (challenge == null) {
+            return Optional.empty();
+        }
+        String mountKey = key(registry, repository) + "<" + sourceRepository;
+        Token token = tokens.get(mountKey);
+        if (token == null || token.isExpired()) {
+            Set<String> scopes = toScopes(Collections.singleton(repository));
+            scopes.add("repository:" + sourceRepository + ":pull");
+            token = fetchToken(challenge, scopes);
+            tokens.put(mountKey, token);
+        }
+        return Optional.of(token.authorization);
+    }
+
+    /**
+     * Returns an authorization that can list the registry's repositories, which the tokens of {@link #getAuthorization}
+     * can't.
+     *
+     * @return empty if the registry doesn't need authorization or doesn't support bearer tokens
+     */
+    public Optional<Authorization> getCatalogAuthorization(String registry) throws IOException {
+        Challenge challenge = getChallenge(registry);
+        if (challenge == null) {
+            return Optional.empty();
+        }
+        String catalogKey = registry + "#catalog";
+        Token token = tokens.get(catalogKey);
+        if (token == null || token.isExpired()) {
+            token = fetchToken(challenge, Collections.singleton(CATALOG_SCOPE));
+            tokens.put(catalogKey, token);
+        }
+        return Optional.of(token.authorization);
+    }
+
+    public void invalidate(String registry, String repository) {
+        String key = key(registry, repository);
+        tokens.remove(key);
+        tokens.keySet().removeIf(mountKey -> mountKey.startsWith(key + "<"));
+    }
+
+    public void clear() {
+        challenges.clear();
+        tokens.clear();
+    }
+
+    /**
+     * Hands the authorization over to Jib's client so that it doesn't go through its own authentication.
+     *
+     * If a token expires, Jib will still refresh it by itself when the registry sends back a 401.
+     *
+     * @return false if the client couldn't be updated, in which case the client should authenticate by itself
+     */
+    public static boolean authorize(RegistryClient registryClient, Authorization authorization) {
+        AtomicReference<Authorization> reference = authorizationReference(registryClient);
+        if (reference == null) {
+            return false;
+        }
+        reference.set(authorization);
+        return true;
+    }
+
+    /**
+     * @return the authorization the client currently uses, null if it has none or it can't be read
+     */
+    public static Authorization authorizationOf(RegistryClient registryClient) {
+        AtomicReference<Authorization> reference = authorizationReference(registryClient);
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * Jib doesn't let us get or set the authorization of a {@link RegistryClient}, so we have to resort to reflection on
+     * its private {@code authorization} field. This was checked against jib-core {@value #CHECKED_JIB_VERSION}, see the
+     * {@code google.jib.version} property of the pom.
+     *
+     * @return null if the field can't be accessed, e.g with another version of Jib
+     */
+    @SuppressWarnings("unchecked")
+    private static AtomicReference<Authorization> authorizationReference(RegistryClient registryClient) {
+        try {
+            Field field = RegistryClient.class.getDeclaredField("authorization");
+            field.setAccessible(true);
+            return (AtomicReference<Authorization>) field.get(registryClient);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            if (REFLECTION_WARNED.compareAndSet(false, true)) {
+                LOG.warn("Could not access the authorization of Jib's registry client, which was checked against jib-core {}."
+                        + " Repositories will be authenticated one at a time", CHECKED_JIB_VERSION, e);
+            }
+            return null;
+        }
+    }
+
+    private Challenge getChallenge(String registry) throws IOException {
+        Challenge challenge = challenges.get(registry);
+        if (challenge == null) {
+            challenge = ping(registry);
+            challenges.put(registry, challenge);
+        }
+        return challenge == Challenge.NONE ? null : challenge;
+    }
+
+    /**
+     * Finds out how the registry wants us to authenticate, see
+     * https://github.com/distribution/distribution/blob/main/docs/spec/auth/token.md
+     */
+    private Challenge ping(String registry) throws IOException {
+        URL url = new URL("https://" + registry + "/v2/");
+        try {
+            client.get(url, Request.builder().build()).close();
+            return Challenge.NONE;
+        } catch (ResponseException e) {
+            if (e.getStatusCode() != 401 || e.getHeaders().getAuthenticate() == null) {
+                throw e;
+            }
+            Challenge challenge = Challenge.parse(e.getHeaders().getAuthenticate());
+            if (challenge == null) {
+                LOG.debug("Registry [{}] doesn't support bearer tokens", registry);
+                return Challenge.NONE;
+            }
+            return challenge;
+        }
+    }
+
+    private static Set<String> toScopes(Collection<String> repositories) {
+        Set<String> scopes = new LinkedHashSet<>();
+        for (String repository : repositories) {
+            scopes.add("repository:" + repository + ":pull,push");
+        }
+        return scopes;
+    }
+
+    private Token fetchToken(Challenge challenge, Set<String> scopes) throws IOException {
+        StringBuilder url = new StringBuilder(challenge.realm);
+        url.append(challenge.realm.contains("?") ? '&' : '?');
+        if (challenge.service != null) {
+            url.append("service=").append(encode(challenge.service)).append('&');
+        }
+        for (String scope : scopes) {
+            url.append("scope=").append(encode(scope)).append('&');
+        }
+        url.setLength(url.length() - 1);
+
+        Request.Builder request = Request.builder();
+        if (credential != null) {
+            request.setAuthorization(Authorization.fromBasicCredentials(credential.getUsername(), credential.getPassword()));
+        }
+        long now = System.currentTimeMillis();
+        try (Response response = client.get(new URL(url.toString()), request.build())) {
+            TokenResponseTemplate template = JsonTemplateMapper.readJson(response.getBody(), TokenResponseTemplate.class);
+            String token = template.token != null ? template.token : template.access_token;
+            if (token == null) {
+                throw new IOException("Token server at " + challenge.realm + " didn't send back a token");
+            }
+            int expiresIn = template.expires_in != null ? template.expires_in : DEFAULT_EXPIRES_IN;
+            LOG.debug("Got token for {} scopes valid for {}s", scopes.size(), expiresIn);
+            // leaves some time for the requests using the token to reach the registry
+            return new Token(Authorization.fromBearerToken(token), now + expiresIn * 900L);
+        }
+    }
+
+    private static String key(String registry, String repository) {
+        return registry + "/" + repository;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class Challenge {
+
+        private static final Challenge NONE = new Challenge(null, null);
+
+        private final String realm;
+        private final String service;
+
+        private Challenge(String realm, String service) {
+            this.realm = realm;
+            this.service = service;
+        }
+
+        /**
+         * @return null if the challenge isn't a bearer challenge e.g {@code Basic realm="Registry"}
+         */
+        static Challenge parse(String wwwAuthenticate) {
+            if (!wwwAuthenticate.regionMatches(true, 0, "Bearer ", 0, 7)) {
+                return null;
+            }
+            Map<String, String> parameters = new HashMap<>();
+            Matcher matcher = CHALLENGE_PARAMETER.matcher(wwwAuthenticate);
+            while (matcher.find()) {
+                parameters.put(matcher.group(1).toLowerCase(), matcher.group(2));
+            }
+            String realm = parameters.get("realm");
+            if (realm == null) {
+                return null;
+            }
+            return new Challenge(realm, parameters.get("service"));
+        }
+
+        String getRealm() {
+            return realm;
+        }
+
+        String getService() {
+            return service;
+        }
+    }
+
+    private static class Token {
+
+        private final Authorization authorization;
+        private final long expiresAt;
+
+        private Token(Authorization authorization, long expiresAt) {
+            this.authorization = authorization;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    /**
+     * Response of the token server, see https://github.com/distribution/distribution/blob/main/docs/spec/auth/token.md#token-response-fields
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class TokenResponseTemplate implements JsonTemplate {
+
+        private String token;
+        private String access_token;
+        private Integer expires_in;
+    }
+}
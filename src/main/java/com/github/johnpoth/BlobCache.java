@@ -0,0 +1,330 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressable cache of pulled blobs, shared by every build on the machine.
+ *
+ * Blobs are stored as {@code blobs/sha256/<hex>}. They are downloaded to a temporary file first and only moved in place
+ * once their digest has been verified, so whatever is in the cache is complete and can be read without locking. The
+ * least recently used blobs are evicted once the cache grows bigger than its maximum size, the last modified time of
+ * a blob is updated every time it's used. Eviction holds a file lock so that concurrent builds don't step on each other,
+ * a blob may still be evicted by another build between the time it's found and the time it's opened.
+ *
+ * The size of the cache is only scanned once, and then again whenever what was added since would make it go over its
+ * maximum size.
+ */
+public class BlobCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlobCache.class);
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    // temporary files older than that were left behind by a build that didn't complete
+    private static final long STALE_TEMPORARY_FILE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Path blobs;
+    private final Path temporary;
+    private final Path lockFile;
+    private final long maxSize;
+    // size of the cache when it was last scanned plus what was added since, -1 until it's scanned
+    private final AtomicLong size = new AtomicLong(-1);
+
+    public BlobCache(Path directory, long maxSize) {
+        this.blobs = directory.resolve("blobs");
+        this.temporary = blobs.resolve("tmp");
+        this.lockFile = blobs.resolve(".lock");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the cached blob, null if it isn't in the cache
+     */
+    public Path get(DescriptorDigest digest) {
+        Path path = getPath(digest);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // e.g the blob was evicted in the meantime
+            LOG.debug("Could not touch cached blob [{}]", path, e);
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * @return the cached blob, null if it isn't in the cache or was evicted before it could be opened
+     */
+    public InputStream open(DescriptorDigest digest) throws IOException {
+        Path path = get(digest);
+        if (path == null) {
+            return null;
+        }
+        try {
+            return Files.newInputStream(path);
+        } catch (NoSuchFileException e) {
+            LOG.debug("Cached blob [{}] was evicted before it could be read", path);
+            return null;
+        }
+    }
+
+    /**
+     * Starts caching a blob, the entry has to be committed once the blob has been verified.
+     */
+    public Entry newEntry(DescriptorDigest digest) throws IOException {
+        Files.createDirectories(temporary);
+        return new Entry(digest, Files.createTempFile(temporary, digest.getHash(), ".tmp"));
+    }
+
+    private Path getPath(DescriptorDigest digest) {
+        return blobs.resolve("sha256").resolve(digest.getHash());
+    }
+
+    private void added(long length) {
+        long current = size.get();
+        if (current >= 0 && size.addAndGet(length) <= maxSize) {
+            return;
+        }
+        evict();
+    }
+
+    private void evict() {
+        // FileChannel locks are held on behalf of the whole JVM, other wagons of this JVM have to be kept out separately
+        synchronized (BlobCache.class) {
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    size.set(evictLeastRecentlyUsed());
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                LOG.debug("Error evicting blobs from [{}]", blobs, e);
+            }
+        }
+    }
+
+    /**
+     * Must be called with the lock held
+     *
+     * @return the size of the cache once blobs have been evicted
+     */
+    private long evictLeastRecentlyUsed() throws IOException {
+        deleteStaleTemporaryFiles();
+        List<Path> paths = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(blobs.resolve("sha256"))) {
+            for (Path path : stream) {
+                paths.add(path);
+                total += Files.size(path);
+            }
+        }
+        if (total <= maxSize) {
+            return total;
+        }
+        paths.sort(Comparator.comparingLong(BlobCache::lastModified));
+        for (Path path : paths) {
+            if (total <= maxSize) {
+                break;
+            }
+            long length = Files.size(path);
+            Files.deleteIfExists(path);
+            total -= length;
+            LOG.debug("Evicted [{}] from the blob cache", path);
+        }
+        return total;
+    }
+
+    private void deleteStaleTemporaryFiles() throws IOException {
+        long staleBefore = System.currentTimeMillis() - STALE_TEMPORARY_FILE_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(temporary)) {
+            for (Path path : stream) {
+                if (lastModified(path) < staleBefore) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A blob being added to the cache. Closing an entry that wasn't committed discards it.
+     */
+    public class Entry implements Closeable {
+
+        private final DescriptorDigest digest;
+        private final Path file;
+        private OutputStream outputStream;
+        private boolean writtenDirectly;
+        private boolean failed;
+        private boolean committed;
+
+        private Entry(DescriptorDigest digest, Path file) {
+            this.digest = digest;
+            this.file = file;
+        }
+
+        /**
+         * @return a blob that also writes whatever it's writing to the cache. Failing to write to the cache doesn't fail
+         * the blob, the entry just won't be committed
+         */
+        public Blob tee(Blob blob) {
+            return new Blob() {
+                @Override
+                public BlobDescriptor writeTo(OutputStream outputStream) throws IOException {
+                    return blob.writeTo(new TeeOutputStream(outputStream));
+                }
+
+                @Override
+                public boolean isRetryable() {
+                    // the cache file can only be written once
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * For downloads that write the blob themselves instead of going through {@link #tee(Blob)}
+         *
+         * @return the file the blob has to be written to
+         */
+        public Path getFile() {
+            writtenDirectly = true;
+            return file;
+        }
+
+        /**
+         * Moves the blob in place, must only be called once its digest has been verified
+         */
+        public void commit() {
+            if (failed || (outputStream == null && !writtenDirectly)) {
+                return;
+            }
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+                Path path = getPath(digest);
+                Files.createDirectories(path.getParent());
+                long length = Files.size(file);
+                // another build may have cached the same blob in the meantime, it's the same content
+                Files.move(file, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+                added(length);
+            } catch (IOException e) {
+                LOG.debug("Could not cache blob [{}]", digest, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing cache file [{}]", file, e);
+                }
+            }
+            if (!committed) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOG.debug("Could not delete cache file [{}]", file, e);
+                }
+            }
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (outputStream == null) {
+                    outputStream = new BufferedOutputStream(Files.newOutputStream(file), FILE_BUFFER_SIZE);
+                }
+                outputStream.write(b, off, len);
+            } catch (IOException e) {
+                LOG.debug("Error writing cache file [{}], the blob won't be cached", file, e);
+                failed = true;
+            }
+        }
+
+        private class TeeOutputStream extends OutputStream {
+
+            private final OutputStream out;
+
+            private TeeOutputStream(OutputStream out) {
+                this.out = out;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                Entry.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        }
+    }
+}
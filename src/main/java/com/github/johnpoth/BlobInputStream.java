@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import com.google.cloud.tools.jib.blob.Blob;
+
+/**
+ * Exposes a {@link Blob} as an {@link InputStream}.
+ *
+ * Jib's blobs can only be written to an {@link OutputStream}, so a task of the wagon's {@link TransferExecutor} writes
+ * the blob into a small, fixed set of buffers that this stream hands out to the reader. Memory usage is bounded by those buffers no matter
+ * how big the blob is. Pulled blobs verify their digest once they have been fully written: call {@link #finish()} once
+ * done reading to consume whatever is left and get notified of any failure.
+ */
+public class BlobInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFER_COUNT = 4;
+    private static final Chunk END = new Chunk(new byte[0]);
+
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final Future<?> writer;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    private Chunk current;
+    private int position;
+    private boolean ended;
+
+    public BlobInputStream(Blob blob, TransferExecutor executor) {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(new byte[BUFFER_SIZE]);
+        }
+        this.writer = executor.execute(() -> {
+            ChunkOutputStream out = new ChunkOutputStream();
+            try {
+                blob.writeTo(out);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                out.close();
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Reads what's left of the blob and waits for it to be fully written.
+     *
+     * @throws IOException if writing the blob failed e.g the digest of the pulled blob doesn't match
+     */
+    public void finish() throws IOException {
+        while (nextChunk()) {
+            position = current.length;
+        }
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException | CancellationException e) {
+            throw new IOException("Error writing blob", e);
+        }
+        throwFailure();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // stops the writer if the reader bailed out early
+        writer.cancel(true);
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        if (current != null) {
+            free.offer(current.data);
+            current = null;
+        }
+        Chunk chunk;
+        try {
+            chunk = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        if (chunk == END) {
+            ended = true;
+            throwFailure();
+            return false;
+        }
+        current = chunk;
+        position = 0;
+        return chunk.length > 0 || nextChunk();
+    }
+
+    private void throwFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new IOException(t.getMessage(), t);
+        }
+    }
+
+    private static class Chunk {
+
+        private final byte[] data;
+        private int length;
+
+        private Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private class ChunkOutputStream extends OutputStream {
+
+        private Chunk chunk;
+        private boolean done;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (chunk == null || chunk.length == chunk.data.length) {
+                nextChunk();
+            }
+            chunk.data[chunk.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (chunk == null || chunk.length == chunk.data.length) {
+                    nextChunk();
+                }
+                int count = Math.min(len, chunk.data.length - chunk.length);
+                System.arraycopy(b, off, chunk.data, chunk.length, count);
+                chunk.length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (chunk != null && chunk.length > 0) {
+                publish(chunk);
+                chunk = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                flush();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            // there's always room left for the end marker
+            filled.offer(END);
+        }
+
+        private void nextChunk() throws IOException {
+            flush();
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                chunk = new Chunk(free.take());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Stream closed");
+            }
+        }
+
+        private void publish(Chunk chunk) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            try {
+                filled.put(chunk);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Stream closed");
+            }
+        }
+    }
+}
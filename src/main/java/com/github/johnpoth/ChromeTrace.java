@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import com.google.cloud.tools.jib.json.JsonTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records spans of time in the Chrome trace event format, which chrome://tracing and https://ui.perfetto.dev show as a
+ * timeline with a row per thread, see https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSsKchNAySU
+ *
+ * Spans recorded by a thread while another of its spans is running show nested under it.
+ */
+public class ChromeTrace {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChromeTrace.class);
+
+    // wagons created during the build writing to the same file share its trace
+    private static final Map<Path, ChromeTrace> TRACES = new ConcurrentHashMap<>();
+    private static final long ORIGIN = System.nanoTime();
+
+    private final Path file;
+    private final Queue<EventTemplate> events = new ConcurrentLinkedQueue<>();
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+
+    ChromeTrace(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the trace written to the given file when the JVM exits, i.e at the end of the build
+     */
+    public static ChromeTrace writtenOnExit(Path file) {
+        return TRACES.computeIfAbsent(file.toAbsolutePath(), path -> {
+            ChromeTrace trace = new ChromeTrace(path);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trace.write();
+                } catch (IOException e) {
+                    LOG.warn("Error writing trace to [{}]: {}", path, e.getMessage());
+                }
+            }, "wagon-docker-registry-trace"));
+            return trace;
+        });
+    }
+
+    /**
+     * Records a span run by the current thread
+     *
+     * @param start when the span started, from {@link System#nanoTime()}
+     * @param end when the span ended, from {@link System#nanoTime()}
+     */
+    public void complete(String name, String category, long start, long end) {
+        Thread thread = Thread.currentThread();
+        threadNames.putIfAbsent(thread.getId(), thread.getName());
+        events.add(new EventTemplate(name, category, "X", toMicros(start), toMicros(end) - toMicros(start), thread.getId()));
+    }
+
+    public void write() throws IOException {
+        List<EventTemplate> traceEvents = new ArrayList<>(events);
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            EventTemplate metadata = new EventTemplate("thread_name", null, "M", null, null, thread.getKey());
+            metadata.args = Collections.singletonMap("name", thread.getValue());
+            traceEvents.add(metadata);
+        }
+        Path parent = file.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            JsonTemplateMapper.writeTo(new TraceTemplate(traceEvents), out);
+        }
+        LOG.info("Wrote trace of {} spans to [{}]", events.size(), file);
+    }
+
+    private static long toMicros(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMicros(nanoTime - ORIGIN);
+    }
+
+    private static class TraceTemplate implements JsonTemplate {
+
+        private final List<EventTemplate> traceEvents;
+        private final String displayTimeUnit = "ms";
+
+        private TraceTemplate(List<EventTemplate> traceEvents) {
+            this.traceEvents = traceEvents;
+        }
+    }
+
+    private static class EventTemplate implements JsonTemplate {
+
+        private final String name;
+        private final String cat;
+        private final String ph;
+        private final Long ts;
+        private final Long dur;
+        private final int pid = 1;
+        private final long tid;
+        private Map<String, String> args;
+
+        private EventTemplate(String name, String cat, String ph, Long ts, Long dur, long tid) {
+            this.name = name;
+            this.cat = cat;
+            this.ph = ph;
+            this.ts = ts;
+            this.dur = dur;
+            this.tid = tid;
+        }
+    }
+}
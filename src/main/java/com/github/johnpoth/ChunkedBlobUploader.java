@@ -0,0 +1,320 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.InputStreamContent;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.http.Authorization;
+import org.apache.commons.compress.utils.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads blobs in chunks, see https://github.com/opencontainers/distribution-spec/blob/main/spec.md#pushing-a-blob-in-chunks
+ *
+ * Jib uploads a blob in a single request, so a failure near the end of a large layer starts the upload over from the
+ * first byte. Here each chunk is sent with its own PATCH request and when one fails, the registry is asked how much of
+ * the blob it got so that the upload carries on from there. Jib's requests can't carry a Content-Range header, which
+ * is why this goes through {@link RegistryHttpClient}.
+ *
+ * Requests go through the {@link RetryPolicy}: the ones that can simply be sent again are retried by it, failed
+ * chunks are resumed with its delays and given up on once it's been retried as many times without any chunk making it.
+ */
+public class ChunkedBlobUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedBlobUploader.class);
+
+    private final RegistryHttpClient http;
+    private final RetryPolicy retries;
+    private final long chunkSize;
+    // registries which don't support chunked uploads, blobs are pushed by Jib instead
+    private final Set<String> unsupportedRegistries = ConcurrentHashMap.newKeySet();
+
+    public ChunkedBlobUploader(RegistryHttpClient http, RetryPolicy retries, long chunkSize) {
+        this.http = http;
+        this.retries = retries;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param authorization can be null if the registry doesn't need any
+     * @param progress where the bytes sent are copied to for progress reporting, can be null. Bytes sent again when
+     *                 resuming aren't copied again, it's flushed once the upload is done
+     * @return false if the blob couldn't be uploaded in chunks and should be uploaded in one go instead e.g the
+     * registry doesn't support chunked uploads or the authorization was rejected
+     */
+    public boolean upload(String registry, String repository, DescriptorDigest digest, LayerBuffer layer, Authorization authorization,
+                          OutputStream progress) throws IOException {
+        if (unsupportedRegistries.contains(registry)) {
+            return false;
+        }
+        long size = layer.getSize();
+        ProgressCopy progressCopy = progress != null ? new ProgressCopy(progress) : null;
+        UploadSession session = null;
+        long offsetAtLastFailure = -1;
+        int retry = 0;
+        while (true) {
+            try {
+                if (session == null) {
+                    session = start(registry, repository, authorization);
+                }
+                while (session.offset < size) {
+                    patch(session, layer, Math.min(chunkSize, size - session.offset), authorization, progressCopy);
+                }
+                finish(session, digest, authorization);
+                if (progress != null) {
+                    progress.flush();
+                }
+                return true;
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() == 401 || e.getStatusCode() == 403) {
+                    LOG.debug("Chunked upload of [{}] to [{}] was denied", digest, repository, e);
+                    return false;
+                }
+                if (isUnsupported(e, session)) {
+                    LOG.info("Registry [{}] doesn't support chunked uploads: {}", registry, e.getStatusMessage());
+                    unsupportedRegistries.add(registry);
+                    return false;
+                }
+                // the upload session is gone, we're out of sync with the registry, or it's turning requests down
+                if (e.getStatusCode() < 500 && e.getStatusCode() != 404 && e.getStatusCode() != 408 && e.getStatusCode() != 416
+                        && e.getStatusCode() != 429) {
+                    throw e;
+                }
+                retry = backOff(session, offsetAtLastFailure, retry, digest, e);
+            } catch (IOException e) {
+                retry = backOff(session, offsetAtLastFailure, retry, digest, e);
+            }
+            offsetAtLastFailure = session == null ? -1 : session.offset;
+            session = resume(session, authorization);
+        }
+    }
+
+    /**
+     * @return the number of retries without progress so far
+     * @throws IOException the failure if the upload shouldn't be retried anymore
+     */
+    private int backOff(UploadSession session, long offsetAtLastFailure, int retry, DescriptorDigest digest, IOException e)
+            throws IOException {
+        // chunks made it since the last failure, the connection is flaky rather than down
+        int retries = session != null && session.offset > offsetAtLastFailure ? 0 : retry;
+        String registry = session != null ? session.registry : null;
+        if (registry == null || !this.retries.backOff(registry, "upload of blob " + digest + " at offset " + session.offset, retries, e)) {
+            throw e;
+        }
+        return retries + 1;
+    }
+
+    /**
+     * A registry that can't take the very first chunk doesn't handle chunked uploads
+     */
+    private static boolean isUnsupported(HttpResponseException e, UploadSession session) {
+        int statusCode = e.getStatusCode();
+        return session != null && session.offset == 0 && session.chunks == 0
+                && (statusCode == 400 || statusCode == 405 || statusCode == 411 || statusCode == 501);
+    }
+
+    private UploadSession start(String registry, String repository, Authorization authorization) throws IOException {
+        return retries.call(registry, "POST blob upload", () -> {
+            HttpResponse response = http.execute(registry, "POST", "/v2/" + repository + "/blobs/uploads/", new EmptyContent(), null,
+                    authorization);
+            try {
+                return new UploadSession(registry, RegistryHttpClient.getLocation(response));
+            } finally {
+                response.ignore();
+            }
+        });
+    }
+
+    private void patch(UploadSession session, LayerBuffer layer, long length, Authorization authorization, ProgressCopy progress)
+            throws IOException {
+        long offset = session.offset;
+        InputStream chunk = new BoundedInputStream(layer.newInputStream(offset), length);
+        HttpContent content = new InputStreamContent("application/octet-stream",
+                progress == null ? chunk : new CopyingInputStream(chunk, progress, offset)).setLength(length);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Content-Range", offset + "-" + (offset + length - 1));
+        HttpResponse response = retries.callOnce(session.registry,
+                () -> http.execute(session.registry, "PATCH", session.url, content, headers, authorization));
+        try {
+            session.url = RegistryHttpClient.getLocation(response);
+            long received = getReceived(response, offset + length);
+            // the registry took the whole chunk unless it says otherwise
+            session.offset = received < 0 ? offset + length : received;
+            session.chunks++;
+        } finally {
+            response.ignore();
+        }
+    }
+
+    private void finish(UploadSession session, DescriptorDigest digest, Authorization authorization) throws IOException {
+        GenericUrl url = new GenericUrl(session.url);
+        url.set("digest", digest.toString());
+        retries.call(session.registry, "PUT blob upload", () -> {
+            http.execute(session.registry, "PUT", url.build(), new EmptyContent(), null, authorization).ignore();
+            return null;
+        });
+    }
+
+    /**
+     * Asks the registry how much of the blob it has
+     *
+     * @return null if the upload has to start over
+     */
+    private UploadSession resume(UploadSession session, Authorization authorization) {
+        if (session == null) {
+            return null;
+        }
+        try {
+            long offset = retries.call(session.registry, "GET blob upload status", () -> {
+                HttpResponse response = http.execute(session.registry, "GET", session.url, null, null, authorization);
+                try {
+                    session.url = RegistryHttpClient.getLocation(response);
+                    return getReceived(response, session.offset);
+                } finally {
+                    response.ignore();
+                }
+            });
+            if (offset < 0) {
+                LOG.debug("Registry didn't say how much of the upload it has, starting over");
+                return null;
+            }
+            session.offset = offset;
+            LOG.debug("Resuming upload at offset {}", session.offset);
+            return session;
+        } catch (HttpResponseException e) {
+            LOG.debug("Upload session is gone, starting over", e);
+            return null;
+        } catch (IOException e) {
+            // the next chunk will be rejected if the registry has more or less than we think
+            LOG.debug("Could not get upload status", e);
+            return session;
+        }
+    }
+
+    /**
+     * Registries answer with the range of bytes they have, {@code 0-0} being what they also answer when they have
+     * nothing as ranges can't be empty.
+     *
+     * @param expected how many bytes we think the registry has, which settles what {@code 0-0} means
+     * @return how many bytes of the blob the registry has, -1 if it didn't say
+     */
+    static long getReceived(HttpResponse response, long expected) throws IOException {
+        String range = response.getHeaders().getFirstHeaderStringValue("Range");
+        return range == null ? -1 : parseReceived(range, expected);
+    }
+
+    static long parseReceived(String range, long expected) throws IOException {
+        // some registries prefix the range with its unit
+        int start = range.indexOf('=') + 1;
+        int separator = range.indexOf('-', start);
+        long end;
+        try {
+            end = Long.parseLong(range.substring(separator + 1).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid Range header [" + range + "]", e);
+        }
+        if (end == 0) {
+            return expected == 1 ? 1 : 0;
+        }
+        return end + 1;
+    }
+
+    /**
+     * Copies each byte of the blob to the progress stream once, even if it's sent more than once
+     */
+    private static class ProgressCopy {
+
+        private final OutputStream out;
+        // bytes of the blob copied so far
+        private long copied;
+
+        private ProgressCopy(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * @param offset of the bytes in the blob
+         */
+        private void write(long offset, byte[] b, int off, int len) throws IOException {
+            long skip = Math.min(len, copied - offset);
+            if (skip < len) {
+                out.write(b, off + (int) Math.max(0, skip), len - (int) Math.max(0, skip));
+                copied = offset + len;
+            }
+        }
+    }
+
+    /**
+     * Copies the bytes read to the progress as they're sent
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+
+        private final ProgressCopy copy;
+        private long offset;
+
+        private CopyingInputStream(InputStream in, ProgressCopy copy, long offset) {
+            super(in);
+            this.copy = copy;
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                copy.write(offset++, new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) {
+                copy.write(offset, b, off, count);
+                offset += count;
+            }
+            return count;
+        }
+    }
+
+    private static class UploadSession {
+
+        private final String registry;
+        private String url;
+        private long offset;
+        private int chunks;
+
+        private UploadSession(String registry, String url) {
+            this.registry = registry;
+            this.url = url;
+        }
+    }
+}
@@ -16,20 +16,49 @@
  */
 package com.github.johnpoth;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.HttpResponse;
 import com.google.cloud.tools.jib.api.Credential;
 import com.google.cloud.tools.jib.api.DescriptorDigest;
 import com.google.cloud.tools.jib.api.ImageReference;
@@ -43,19 +72,23 @@ import com.google.cloud.tools.jib.event.EventHandlers;
 import com.google.cloud.tools.jib.global.JibSystemProperties;
 import com.google.cloud.tools.jib.hash.CountingDigestOutputStream;
 import com.google.cloud.tools.jib.hash.Digests;
+import com.google.cloud.tools.jib.http.Authorization;
 import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.http.Request;
+import com.google.cloud.tools.jib.http.Response;
 import com.google.cloud.tools.jib.http.ResponseException;
 import com.google.cloud.tools.jib.image.json.BuildableManifestTemplate;
 import com.google.cloud.tools.jib.image.json.ContainerConfigurationTemplate;
+import com.google.cloud.tools.jib.image.json.ManifestTemplate;
 import com.google.cloud.tools.jib.image.json.OciManifestTemplate;
 import com.google.cloud.tools.jib.image.json.V22ManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
 import com.google.cloud.tools.jib.registry.ManifestAndDigest;
 import com.google.cloud.tools.jib.registry.RegistryClient;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.utils.CloseShieldFilterInputStream;
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
@@ -98,131 +131,1101 @@ public class DockerDistributionWagon implements Wagon {
     private ImageFormat imageFormat = ImageFormat.Docker;
     private ImageNamingStrategy imageNamingStrategy = ImageNamingStrategy.Default;
     private Map<String, String> imageNamingMap = new HashMap<>();
+    private long inMemoryLayerLimit = 8 * 1024 * 1024;
+    private boolean asyncPut = false;
+    private boolean asyncCompanions = false;
+    private int putConcurrency = 4;
+    private File cacheDirectory = new File(System.getProperty("user.home"), ".m2/wagon-docker-registry");
+    private boolean knownBlobCache = true;
+    private boolean blobCache = false;
+    private long blobCacheMaxSize = 1024L * 1024 * 1024;
+    private boolean metadataCache = true;
+    private LayerCompression layerCompression = LayerCompression.Gzip;
+    private int compressionLevel = -1;
+    private int compressionThreads = 1;
+    private long uploadChunkSize = 0;
+    private int downloadConnections = 1;
+    private int prefetchConcurrency = 8;
+    private long directoryLayerSize = 64 * 1024 * 1024;
+    private boolean versionIndex = false;
+    private int progressGranularity = FilterProgressOutputStream.DEFAULT_GRANULARITY;
+    private long progressInterval = FilterProgressOutputStream.DEFAULT_INTERVAL;
+    private boolean metricsSummary = false;
+    private boolean jibEvents = true;
+    private File traceFile;
+    private int maxRetries = 5;
+    private long retryBackoff = 500;
+    private long maxRetryBackoff = 30 * 1000;
+    private int registryConcurrency = 32;
 
     private static final List<String> PROXY_PROPERTIES = Arrays.asList("proxyHost", "proxyPort", "proxyUser", "proxyPassword");
+    private static final List<String> COMPANION_EXTENSIONS = Arrays.asList(".sha1", ".md5", ".asc");
+    private static final String VERSION_INDEX_TAG = "wagon-index";
+    // version indexes only hold annotations, their layers are all the same empty TAR
+    private static final byte[] EMPTY_TAR = new byte[1024];
+    private static final DescriptorDigest EMPTY_TAR_DIGEST = computeDigest(EMPTY_TAR);
+    // listeners are told about the bytes of gets, which are written to the destination by a channel
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    private final WagonMetrics metrics = WagonMetrics.getInstance();
     private FailoverHttpClient client;
+    private RegistryClientPool registryClients;
+    private BearerTokenCache bearerTokens;
+    private TransferExecutor transfers;
+    private ExecutorService blobTransfers;
+    private ForkJoinPool compressionPool;
+    private RegistryHttpClient registryHttp;
+    private ChunkedBlobUploader chunkedUploads;
+    private RangedBlobDownloader rangedDownloads;
+    private KnownBlobIndex knownBlobs;
+    private BlobCache pulledBlobs;
+    private ManifestMetadataCache manifestMetadata;
+    private JibEventBridge eventBridge;
+    private RetryPolicy retries;
+    private ChromeTrace trace;
+    // what prefetch found out about resources, used once by the next get
+    private final Map<String, ManifestMetadataCache.Metadata> prefetched = new ConcurrentHashMap<>();
+    // images of the Module naming strategy and version indexes changed during the session, by registry, repository and tag
+    private final Map<String, ModuleImage> moduleImages = new ConcurrentHashMap<>();
+    // artifact whose checksums and signatures are being uploaded in the background when only asyncCompanions is enabled
+    private String pendingCompanionsOf;
 
 
     @Override
     public void get(String resourceName, File destination) throws TransferFailedException, ResourceDoesNotExistException {
+        // makes sure we read what was previously put
+        awaitPuts();
         RegistryClient registryClient = getRegistryClient(resourceName);
 
+        ManifestMetadataCache.Metadata metadata = prefetched.remove(resourceName);
+        if (metadata != null) {
+            copyResource(resourceName, destination, registryClient, metadata.getLayerDigest(), metadata.getLayerSize(),
+                    getLayerCompression(resourceName, metadata));
+            return;
+        }
         ManifestAndDigest<BuildableManifestTemplate> v1 = getManifest(resourceName, registryClient);
+        BuildableManifestTemplate.ContentDescriptorTemplate layer = getLayer(resourceName, v1.getManifest());
 
-        copyResource(resourceName, destination, registryClient, v1);
+        copyResource(resourceName, destination, registryClient, layer.getDigest(), layer.getSize(), getLayerCompression(resourceName, layer));
     }
 
     @Override
     public boolean getIfNewer(String resourceName, File destination, long timestamp) throws TransferFailedException, ResourceDoesNotExistException {
+        awaitPuts();
         RegistryClient registryClient = getRegistryClient(resourceName);
+        ImageReference imageReference = getImageReference(resourceName);
+        String tag = getTag(resourceName);
 
-        ManifestAndDigest<BuildableManifestTemplate> v1 = getManifest(resourceName, registryClient);
+        ManifestMetadataCache.Metadata metadata = prefetched.remove(resourceName);
+        if (metadata == null || metadata.getCreated() < 0) {
+            metadata = getCachedMetadata(registryClient, imageReference, tag, getMetadataTag(resourceName));
+        }
+        if (metadata == null) {
+            ManifestAndDigest<BuildableManifestTemplate> v1 = getManifest(resourceName, registryClient);
+            DescriptorDigest configDigest = v1.getManifest().getContainerConfiguration().getDigest();
+            BuildableManifestTemplate.ContentDescriptorTemplate layer = getLayer(resourceName, v1.getManifest());
+            long created = getCreated(resourceName, layer);
+            if (created < 0) {
+                // artifacts put by older versions of the wagon don't have annotations
+                created = getCreated(resourceName, registryClient, configDigest);
+            }
+            metadata = new ManifestMetadataCache.Metadata(v1.getDigest(), configDigest, layer.getDigest(),
+                    getLayerCompression(resourceName, layer).getMediaType(imageFormat), layer.getSize(), created);
+            if (manifestMetadata != null) {
+                manifestMetadata.put(imageReference.getRegistry(), imageReference.getRepository(), getMetadataTag(resourceName), metadata);
+            }
+        }
 
-        if (isOlder(resourceName, timestamp, registryClient, v1)) {
+        if (metadata.getCreated() >= timestamp) {
             return false;
         }
-        copyResource(resourceName, destination, registryClient, v1);
+        copyResource(resourceName, destination, registryClient, metadata.getLayerDigest(), metadata.getLayerSize(),
+                getLayerCompression(resourceName, metadata));
         return true;
     }
 
+    /**
+     * Resolves the manifests of the given resources and downloads their layers to the blob cache, all concurrently, so
+     * that getting them afterwards doesn't involve the registry anymore. Meant for extensions that know which artifacts
+     * the build is about to resolve: Maven gets them one at a time.
+     *
+     * Prefetching is best effort, resources that couldn't be prefetched are simply fetched by {@link #get} as usual. The
+     * blob cache is enabled for the session if it wasn't already.
+     *
+     * @return the number of resources that were prefetched
+     */
+    public int prefetch(Collection<String> resourceNames) throws TransferFailedException {
+        awaitPuts();
+        if (pulledBlobs == null) {
+            pulledBlobs = new BlobCache(cacheDirectory.toPath(), blobCacheMaxSize);
+        }
+        long start = System.nanoTime();
+        ExecutorService executor = TransferExecutor.newExecutorService("wagon-docker-registry-prefetch-", prefetchConcurrency);
+        try {
+            List<CompletableFuture<Boolean>> prefetches = new ArrayList<>();
+            for (String resourceName : new LinkedHashSet<>(resourceNames)) {
+                prefetches.add(CompletableFuture.supplyAsync(() -> prefetch(resourceName), executor));
+            }
+            int count = (int) prefetches.stream().filter(CompletableFuture::join).count();
+            LOG.info("Prefetched {} of {} resources in {}ms", count, prefetches.size(), (System.nanoTime() - start) / 1000000);
+            return count;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private boolean prefetch(String resourceName) {
+        try {
+            RegistryClient registryClient = getRegistryClient(resourceName);
+            ImageReference imageReference = getImageReference(resourceName);
+            ManifestAndDigest<BuildableManifestTemplate> v1 = getManifest(resourceName, registryClient);
+            BuildableManifestTemplate.ContentDescriptorTemplate layer = getLayer(resourceName, v1.getManifest());
+            if (pulledBlobs.get(layer.getDigest()) == null) {
+                fetchBlob(registryClient, imageReference, layer.getDigest(), layer.getSize());
+            } else {
+                metrics.increment(WagonMetrics.Counter.BlobCacheHits);
+            }
+            // only artifacts with annotations tell when they were created without fetching their configuration
+            ManifestMetadataCache.Metadata metadata = new ManifestMetadataCache.Metadata(v1.getDigest(),
+                    v1.getManifest().getContainerConfiguration().getDigest(), layer.getDigest(),
+                    getLayerCompression(resourceName, layer).getMediaType(imageFormat), layer.getSize(), getCreated(resourceName, layer));
+            if (manifestMetadata != null && metadata.getCreated() >= 0) {
+                manifestMetadata.put(imageReference.getRegistry(), imageReference.getRepository(), getMetadataTag(resourceName), metadata);
+            }
+            prefetched.put(resourceName, metadata);
+            return true;
+        } catch (ResourceDoesNotExistException e) {
+            LOG.debug("Not prefetching [{}]: {}", resourceName, e.getMessage());
+            return false;
+        } catch (Exception e) {
+            LOG.warn("Error prefetching [{}]: {}", resourceName, e.getMessage());
+            LOG.debug("Prefetch error", e);
+            return false;
+        }
+    }
+
+    /**
+     * Downloads a blob to the blob cache
+     */
+    private void fetchBlob(RegistryClient registryClient, ImageReference imageReference, DescriptorDigest digest, long size) throws IOException {
+        long start = System.nanoTime();
+        try (BlobCache.Entry cacheEntry = pulledBlobs.newEntry(digest)) {
+            Path file = cacheEntry.getFile();
+            if (rangedDownloads != null && rangedDownloads.isRanged(size)) {
+                rangedDownloads.download(imageReference.getRegistry(), imageReference.getRepository(), digest, size, file,
+                        BearerTokenCache.authorizationOf(registryClient));
+            } else {
+                BlobDescriptor descriptor = retries.call(imageReference.getRegistry(), "GET blob " + digest, () -> {
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                        return registryClient.pullBlob(digest, ignored -> {
+                        }, ignored -> {
+                        }).writeTo(out);
+                    }
+                });
+                if (!descriptor.getDigest().equals(digest)) {
+                    throw new IOException("Downloaded blob doesn't match [" + digest + "], got [" + descriptor.getDigest() + "]");
+                }
+            }
+            cacheEntry.commit();
+            metrics.add(WagonMetrics.Counter.BytesDownloaded, size);
+        } finally {
+            record(WagonMetrics.Phase.PullBlob, start);
+        }
+    }
+
+    /**
+     * Unchanged artifacts only cost a HEAD request: the cached metadata is used as long as the tag still points to the
+     * same manifest
+     *
+     * @param metadataTag what the metadata is cached under, see {@link #getMetadataTag}
+     * @return null if there is no cached metadata or it's stale
+     */
+    private ManifestMetadataCache.Metadata getCachedMetadata(RegistryClient registryClient, ImageReference imageReference, String tag,
+                                                             String metadataTag) {
+        if (manifestMetadata == null) {
+            return null;
+        }
+        String registry = imageReference.getRegistry();
+        String repository = imageReference.getRepository();
+        ManifestMetadataCache.Metadata metadata = manifestMetadata.get(registry, repository, metadataTag);
+        if (metadata == null) {
+            return null;
+        }
+        DescriptorDigest manifestDigest;
+        try {
+            manifestDigest = headManifest(registryClient, imageReference, tag).orElse(null);
+        } catch (IOException e) {
+            LOG.debug("Error checking manifest [{}:{}]", repository, tag, e);
+            return null;
+        }
+        if (!metadata.getManifestDigest().equals(manifestDigest)) {
+            LOG.debug("Manifest metadata of [{}:{}] is stale", repository, tag);
+            manifestMetadata.remove(registry, repository, metadataTag);
+            return null;
+        }
+        metrics.increment(WagonMetrics.Counter.MetadataCacheHits);
+        return metadata;
+    }
+
+    /**
+     * Jib only checks manifests with a GET, we only need the digest the registry sends back for a HEAD request
+     *
+     * @return empty if the manifest doesn't exist
+     * @throws IOException if the registry didn't tell us the digest of an existing manifest
+     */
+    private Optional<DescriptorDigest> headManifest(RegistryClient registryClient, ImageReference imageReference, String tag) throws IOException {
+        Request.Builder request = Request.builder()
+                .setAccept(Arrays.asList(V22ManifestTemplate.MANIFEST_MEDIA_TYPE, OciManifestTemplate.MANIFEST_MEDIA_TYPE));
+        Authorization authorization = BearerTokenCache.authorizationOf(registryClient);
+        if (authorization != null) {
+            request.setAuthorization(authorization);
+        }
+        URL url = new URL("https://" + imageReference.getRegistry() + "/v2/" + imageReference.getRepository() + "/manifests/" + tag);
+        return retries.call(imageReference.getRegistry(), "HEAD manifest " + tag, () -> headManifest(url, request.build(), imageReference, tag));
+    }
+
+    private Optional<DescriptorDigest> headManifest(URL url, Request request, ImageReference imageReference, String tag) throws IOException {
+        long start = System.nanoTime();
+        try (Response response = client.call("HEAD", url, request)) {
+            List<String> digests = response.getHeader("Docker-Content-Digest");
+            if (digests.isEmpty()) {
+                throw new IOException("Registry didn't send the digest of manifest " + imageReference.getRepository() + ":" + tag);
+            }
+            try {
+                return Optional.of(DescriptorDigest.fromDigest(digests.get(0)));
+            } catch (DigestException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        } catch (ResponseException e) {
+            if (e.getStatusCode() == 404) {
+                metrics.increment(WagonMetrics.Counter.ManifestsNotFound);
+                return Optional.empty();
+            }
+            throw e;
+        } finally {
+            record(WagonMetrics.Phase.GetManifest, start);
+        }
+    }
+
     @Override
     public void put(File source, String destination) throws TransferFailedException, ResourceDoesNotExistException {
+        // reports failed asynchronous puts as soon as possible
+        transfers.throwFailures();
+        String companionOf = asyncCompanions && isCompanion(destination) ? getCompanionOwner(destination) : null;
+        if (!asyncPut && pendingCompanionsOf != null && !pendingCompanionsOf.equals(companionOf)) {
+            // the companions of an artifact only overlap with each other, anything else is put once they are uploaded
+            pendingCompanionsOf = null;
+            transfers.drain();
+        }
+        prefetched.remove(destination);
+        List<String> changedImages = new ArrayList<>(1);
+        String indexDirectory = getVersionIndexDirectory(destination);
+        if (indexDirectory != null) {
+            changedImages.add(touchModuleImage(getDirectoryImageResource(indexDirectory), VERSION_INDEX_TAG));
+        }
+        // Maven is done with the previous directory once it puts files elsewhere
+        pushModuleImages(changedImages);
         RegistryClient registryClient = getRegistryClient(destination);
         String tag = getTag(destination);
-        // while copying data, it helps performance to calculate digests at the same time
-        CountingDigestOutputStream cfo;
-        CountingDigestOutputStream cfoTar;
-        ByteArrayOutputStream ba;
+        // the layer is spilled to disk once it gets too big so heap usage doesn't depend on the artifact's size
+        LayerBuffer layer = new LayerBuffer(inMemoryLayerLimit);
         try {
-            ba = new ByteArrayOutputStream();
-            cfo = new CountingDigestOutputStream(ba);
-            GzipCompressorOutputStream gzOut = new GzipCompressorOutputStream(cfo);
-            cfoTar = new CountingDigestOutputStream(gzOut);
-            TarArchiveOutputStream tOut = new TarArchiveOutputStream(cfoTar, StandardCharsets.UTF_8.name());
-            tOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
-            tOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
-
-            TarArchiveEntry tarEntry = new TarArchiveEntry(source);
-            tarEntry.setName(source.getName());
-            tarEntry.setModTime(Instant.ofEpochMilli((source.lastModified())).getEpochSecond());
-            tOut.putArchiveEntry(tarEntry);
-            IOUtils.copy(source, tOut);
-            tOut.closeArchiveEntry();
-            tOut.finish();
-            gzOut.close();
-        } catch (Exception ex) {
-            throw new ResourceDoesNotExistException(ex.getMessage());
-        }
-
-        // Even though this is not a real image, some clients e.g Docker complain when there is no Config.json in the image tar which
-        // helps interoperability
-        ContainerConfigurationTemplate containerConfiguration = new ContainerConfigurationTemplate();
-        containerConfiguration.addLayerDiffId(cfoTar.computeDigest().getDigest());
-        containerConfiguration.setCreated(Instant.ofEpochMilli((source.lastModified())).toString());
+            // while copying data, it helps performance to calculate digests at the same time
+            CountingDigestOutputStream cfo;
+            CountingDigestOutputStream cfoTar;
+            MessageDigest sha1;
+            MessageDigest md5;
+            long start = System.nanoTime();
+            try {
+                cfo = new CountingDigestOutputStream(layer.getOutputStream());
+                OutputStream compressedOut = compress(cfo);
+                cfoTar = new CountingDigestOutputStream(compressedOut);
+                TarArchiveOutputStream tOut = newTarOutputStream(cfoTar);
+
+                TarArchiveEntry tarEntry = new TarArchiveEntry(source);
+                tarEntry.setName(source.getName());
+                tarEntry.setModTime(Instant.ofEpochMilli((source.lastModified())).getEpochSecond());
+                tOut.putArchiveEntry(tarEntry);
+                // computes the checksums Maven is about to upload along the way, they end up in the manifest
+                sha1 = MessageDigest.getInstance("SHA-1");
+                md5 = MessageDigest.getInstance("MD5");
+                try (InputStream sourceIn = new DigestInputStream(new DigestInputStream(Files.newInputStream(source.toPath()), sha1), md5)) {
+                    IOUtils.copy(sourceIn, tOut);
+                }
+                tOut.closeArchiveEntry();
+                tOut.finish();
+                compressedOut.close();
+            } catch (Exception ex) {
+                throw new ResourceDoesNotExistException(ex.getMessage());
+            } finally {
+                record(WagonMetrics.Phase.Pack, start);
+            }
+
+            // Even though this is not a real image, some clients e.g Docker complain when there is no Config.json in the image tar which
+            // helps interoperability
+            ContainerConfigurationTemplate containerConfiguration = new ContainerConfigurationTemplate();
+            containerConfiguration.addLayerDiffId(cfoTar.computeDigest().getDigest());
+            containerConfiguration.setCreated(Instant.ofEpochMilli((source.lastModified())).toString());
+            BlobDescriptor blobDescriptor = cfo.computeDigest();
+            // lets clients decide whether they need the artifact without fetching the configuration
+            Map<String, String> layerAnnotations = new LinkedHashMap<>();
+            layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_TITLE, getFileName(destination));
+            layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_CREATED, Instant.ofEpochMilli(source.lastModified()).toString());
+            layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_SIZE, String.valueOf(source.length()));
+            layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_SHA1, toHex(sha1.digest()));
+            layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_MD5, toHex(md5.digest()));
+
+            Resource resource = new Resource(destination);
+            // what's transferred is the layer
+            resource.setContentLength(blobDescriptor.getSize());
+            resource.setLastModified(source.lastModified());
+            // checksums and signatures are uploaded in the background, overlapping with each other
+            if (asyncPut || companionOf != null) {
+                // the source has been read, Maven may delete it as soon as we return. The layer is now owned by the task
+                LayerBuffer pending = layer;
+                layer = null;
+                ImageReference imageReference = getImageReference(destination);
+                if (!asyncPut) {
+                    pendingCompanionsOf = companionOf;
+                }
+                transfers.submit(getImageKey(imageReference), destination, () -> {
+                    try {
+                        TransferProgress progress = newTransferProgress(resource, TransferEvent.REQUEST_PUT, false);
+                        pushImage(registryClient, destination, tag, pending, progress, blobDescriptor, layerAnnotations, containerConfiguration);
+                        progress.completed();
+                        logUpload(progress);
+                    } finally {
+                        pending.close();
+                    }
+                });
+            } else {
+                TransferProgress progress = newTransferProgress(resource, TransferEvent.REQUEST_PUT, true);
+                progress.started();
+                try {
+                    pushImage(registryClient, destination, tag, layer, progress, blobDescriptor, layerAnnotations, containerConfiguration);
+                } catch (TransferFailedException e) {
+                    progress.failed(e);
+                    throw e;
+                }
+                progress.completed();
+                logUpload(progress);
+            }
+        } finally {
+            if (layer != null) {
+                layer.close();
+            }
+        }
+    }
+
+    private OutputStream compress(OutputStream out) throws IOException {
+        // gzip is the only codec without multithreading of its own
+        return layerCompression == LayerCompression.Gzip && compressionPool != null
+                ? new ParallelGzipOutputStream(out, compressionLevel, compressionPool)
+                : layerCompression.compress(out, compressionLevel);
+    }
+
+    private static TarArchiveOutputStream newTarOutputStream(OutputStream out) {
+        TarArchiveOutputStream tOut = new TarArchiveOutputStream(out, StandardCharsets.UTF_8.name());
+        tOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        return tOut;
+    }
+
+    /**
+     * Pushes the layer and configuration blobs concurrently, then the manifest referencing them
+     */
+    private void pushImage(RegistryClient registryClient, String destination, String tag, LayerBuffer layer, TransferProgress progress,
+                           BlobDescriptor blobDescriptor, Map<String, String> layerAnnotations, ContainerConfigurationTemplate containerConfiguration)
+            throws TransferFailedException {
+        if (imageNamingStrategy == ImageNamingStrategy.Module) {
+            pushModuleLayer(registryClient, destination, layer, progress, blobDescriptor, layerAnnotations, containerConfiguration.getLayerDiffId(0));
+            return;
+        }
         Blob testContainerConfigurationBlob = Blobs.from(containerConfiguration);
         try {
+            ImageReference imageReference = getImageReference(destination);
             DescriptorDigest testContainerConfigurationBlobDigest = Digests.computeDigest(containerConfiguration).getDigest();
             // Creates a valid image manifest.
-            BuildableManifestTemplate expectedManifestTemplate = getBuildableManifestTemplate();
+            ArtifactManifestTemplate expectedManifestTemplate = new ArtifactManifestTemplate(this.imageFormat);
             expectedManifestTemplate.setContainerConfiguration(Digests.computeDigest(containerConfiguration).getSize(), testContainerConfigurationBlobDigest);
-            BlobDescriptor blobDescriptor = cfo.computeDigest();
-            expectedManifestTemplate.addLayer(blobDescriptor.getSize(), blobDescriptor.getDigest());
+            expectedManifestTemplate.addLayer(layerCompression, blobDescriptor.getSize(), blobDescriptor.getDigest(), layerAnnotations);
 
-            // if we want to notify Maven of our progress, we'll have to wrap the blobs/stream and notify Maven accordingly
-            // not sure how useful this is to users so we'll leave it as it is for now
-            registryClient.pushBlob(blobDescriptor.getDigest(), new ByteArrayOutputStreamBlob(ba), null, ignored -> {
-            });
-            registryClient.pushBlob(testContainerConfigurationBlobDigest, testContainerConfigurationBlob, null,
-                    ignored -> {
-                    });
-            DescriptorDigest imageDigest = registryClient.pushManifest(expectedManifestTemplate, tag);
+            boolean skipped = pushBlobs(registryClient, imageReference, blobDescriptor.getDigest(), layer, progress,
+                    testContainerConfigurationBlobDigest, testContainerConfigurationBlob, true);
+            DescriptorDigest imageDigest;
+            try {
+                imageDigest = pushManifest(registryClient, imageReference, expectedManifestTemplate, tag);
+            } catch (IOException | RegistryException e) {
+                if (!skipped) {
+                    throw e;
+                }
+                // the registry may have lost blobs we thought it had e.g they were garbage collected, checks them for real this time
+                LOG.debug("Error pushing manifest for [{}], pushing its blobs again", destination, e);
+                metrics.increment(WagonMetrics.Counter.Retries);
+                forgetKnownBlob(imageReference, blobDescriptor.getDigest());
+                forgetKnownBlob(imageReference, testContainerConfigurationBlobDigest);
+                pushBlobs(registryClient, imageReference, blobDescriptor.getDigest(), layer, progress,
+                        testContainerConfigurationBlobDigest, testContainerConfigurationBlob, false);
+                imageDigest = pushManifest(registryClient, imageReference, expectedManifestTemplate, tag);
+            }
             LOG.debug("Successfully pushed manifest [{}]",imageDigest.toString());
+            addToVersionIndex(destination, blobDescriptor.getDigest(), layerAnnotations.get(ArtifactManifestTemplate.ANNOTATION_CREATED));
         } catch(Exception e) {
             LOG.error("Error while putting [{}]", destination, e);
+            invalidateRegistryClient(destination);
             throw new TransferFailedException(e.getMessage());
         }
     }
 
-    private BuildableManifestTemplate getBuildableManifestTemplate() {
-        // Defaults to Docker
-        switch (this.imageFormat) {
-            case OCI:
-                return new OciManifestTemplate();
-            default:
-                return new V22ManifestTemplate();
+    /**
+     * Pushes the layer blob, adds it to its module image and pushes the image's manifest so that the file is in the
+     * registry once the put is done
+     */
+    private void pushModuleLayer(RegistryClient registryClient, String destination, LayerBuffer layer, TransferProgress progress,
+                                 BlobDescriptor blobDescriptor, Map<String, String> layerAnnotations, DescriptorDigest diffId)
+            throws TransferFailedException {
+        try {
+            ImageReference imageReference = getImageReference(destination);
+            ModuleImage moduleImage = getModuleImage(registryClient, imageReference, destination, getTag(destination));
+            // the manifest isn't pushed right away, we wouldn't find out in time that the registry lost a blob we thought it had
+            pushBlobIfMissing(registryClient, imageReference, blobDescriptor.getDigest(), layer.toBlob(), layer, progress, false);
+            moduleImage.put(new ModuleImage.Layer(layerCompression, blobDescriptor.getSize(), blobDescriptor.getDigest(), diffId,
+                    layerAnnotations));
+            LOG.debug("Added [{}] to module image [{}]", destination, imageReference);
+            pushModuleManifest(moduleImage);
+            addToVersionIndex(destination, blobDescriptor.getDigest(), layerAnnotations.get(ArtifactManifestTemplate.ANNOTATION_CREATED));
+        } catch (TransferFailedException e) {
+            // already reported
+            throw e;
+        } catch (Exception e) {
+            LOG.error("Error while putting [{}]", destination, e);
+            invalidateRegistryClient(destination);
+            throw new TransferFailedException(e.getMessage());
         }
+    }
 
+    /**
+     * Records a file in the version index of its directory, whose manifest is pushed later on along with the module
+     * images, see {@link #pushModuleImages}. Failing to do so doesn't fail the put: listings then fall back to what's
+     * in the registry.
+     *
+     * @param created when the file was created, can be null
+     */
+    private void addToVersionIndex(String resourceName, DescriptorDigest layerDigest, String created) {
+        String indexDirectory = getVersionIndexDirectory(resourceName);
+        if (indexDirectory == null) {
+            return;
+        }
+        String indexResource = getDirectoryImageResource(indexDirectory);
+        // files of the index's directory itself, e.g maven-metadata.xml, are under "."
+        String path = resourceName.substring(indexDirectory.length() + 1);
+        int separator = path.indexOf('/');
+        String title = separator < 0 ? "." : path.substring(0, separator);
+        try {
+            ModuleImage index = getModuleImage(getRegistryClient(indexResource), getImageReference(indexResource), indexResource,
+                    VERSION_INDEX_TAG);
+            synchronized (index) {
+                Map<String, String> files = new TreeMap<>();
+                ModuleImage.Layer existing = index.getLayer(title);
+                if (existing != null) {
+                    files.putAll(getIndexedFiles(existing.getAnnotations()));
+                    created = getLatest(created, existing.getAnnotations().get(ArtifactManifestTemplate.ANNOTATION_CREATED));
+                }
+                files.put(path, layerDigest.toString());
+                index.put(newIndexLayer(title, files, created));
+            }
+        } catch (Exception e) {
+            LOG.warn("Error adding [{}] to the version index of [{}]: {}", resourceName, indexDirectory, e.getMessage());
+            LOG.debug("Version index error", e);
+        }
     }
 
-    private void copyResource(String resourceName, File destination, RegistryClient registryClient, ManifestAndDigest<BuildableManifestTemplate> v1) throws TransferFailedException {
+    /**
+     * Adds what other deployments put into a version index since we loaded it, so that pushing it doesn't drop their
+     * versions or files. Ours win when both have the same file.
+     */
+    private void mergeVersionIndex(ModuleImage index, RegistryClient registryClient, ImageReference imageReference)
+            throws IOException, RegistryException {
+        BuildableManifestTemplate manifest = pullManifestIfExists(registryClient, imageReference, VERSION_INDEX_TAG);
+        if (manifest == null) {
+            return;
+        }
+        synchronized (index) {
+            for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+                Map<String, String> annotations = layer.getAnnotations();
+                if (annotations == null || !annotations.containsKey(ArtifactManifestTemplate.ANNOTATION_TITLE)
+                        || !annotations.containsKey(ArtifactManifestTemplate.ANNOTATION_FILES)) {
+                    continue;
+                }
+                String title = annotations.get(ArtifactManifestTemplate.ANNOTATION_TITLE);
+                Map<String, String> files = getIndexedFiles(annotations);
+                String created = annotations.get(ArtifactManifestTemplate.ANNOTATION_CREATED);
+                ModuleImage.Layer existing = index.getLayer(title);
+                if (existing != null) {
+                    Map<String, String> ours = getIndexedFiles(existing.getAnnotations());
+                    if (ours.entrySet().containsAll(files.entrySet())) {
+                        continue;
+                    }
+                    files.putAll(ours);
+                    created = getLatest(created, existing.getAnnotations().get(ArtifactManifestTemplate.ANNOTATION_CREATED));
+                }
+                index.put(newIndexLayer(title, files, created));
+            }
+        }
+    }
 
-        Resource resource = new Resource(resourceName);
-        fireTransferStartedEvent(resource);
+    /**
+     * @return the digest of each file of a version index layer by path, empty digests for layers that don't have them
+     */
+    private static Map<String, String> getIndexedFiles(Map<String, String> annotations) {
+        Map<String, String> files = new TreeMap<>();
+        String[] paths = annotations.get(ArtifactManifestTemplate.ANNOTATION_FILES).split("\n");
+        String[] digests = annotations.getOrDefault(ArtifactManifestTemplate.ANNOTATION_DIGESTS, "").split("\n");
+        for (int i = 0; i < paths.length; i++) {
+            files.put(paths[i], i < digests.length ? digests[i] : "");
+        }
+        return files;
+    }
+
+    /**
+     * @param created can be null
+     */
+    private static ModuleImage.Layer newIndexLayer(String title, Map<String, String> files, String created) {
+        Map<String, String> annotations = new LinkedHashMap<>();
+        annotations.put(ArtifactManifestTemplate.ANNOTATION_TITLE, title);
+        if (created != null) {
+            annotations.put(ArtifactManifestTemplate.ANNOTATION_CREATED, created);
+        }
+        annotations.put(ArtifactManifestTemplate.ANNOTATION_FILES, String.join("\n", files.keySet()));
+        annotations.put(ArtifactManifestTemplate.ANNOTATION_DIGESTS, String.join("\n", files.values()));
+        return new ModuleImage.Layer(LayerCompression.None, EMPTY_TAR.length, EMPTY_TAR_DIGEST, EMPTY_TAR_DIGEST, annotations);
+    }
+
+    /**
+     * @return the later of two instants, either can be null
+     */
+    private static String getLatest(String created, String otherCreated) {
+        // ISO-8601 instants sort chronologically
+        return created == null || (otherCreated != null && otherCreated.compareTo(created) > 0) ? otherCreated : created;
+    }
+
+    /**
+     * Files are indexed by the directory holding their versions, e.g the index of org/apache/ant/ant lists the files of
+     * org/apache/ant/ant/1.10.12 as well as its own maven-metadata.xml
+     *
+     * @return the directory whose index lists the given resource, null if it has none or indexes are disabled
+     */
+    private String getVersionIndexDirectory(String resourceName) {
+        int separator = resourceName.lastIndexOf('/');
+        if (!versionIndex || separator <= 0) {
+            return null;
+        }
+        String directory = resourceName.substring(0, separator);
+        int parentSeparator = directory.lastIndexOf('/');
+        if (!isVersion(directory.substring(parentSeparator + 1))) {
+            return directory;
+        }
+        return parentSeparator > 0 ? directory.substring(0, parentSeparator) : null;
+    }
+
+    /**
+     * Marks an image as about to change, see {@link ModuleImage#touch()}
+     *
+     * @return the key of the image
+     */
+    private String touchModuleImage(String resourceName, String tag) throws ResourceDoesNotExistException {
+        String key = getImageKey(getImageReference(resourceName)) + ":" + tag;
+        moduleImages.computeIfAbsent(key, ignored -> new ModuleImage(resourceName, tag)).touch();
+        return key;
+    }
+
+    /**
+     * @return the module image or version index of the given resource, starting from what's in the registry the first
+     * time it's changed
+     */
+    private ModuleImage getModuleImage(RegistryClient registryClient, ImageReference imageReference, String resourceName, String tag)
+            throws IOException, RegistryException {
+        ModuleImage moduleImage = moduleImages.computeIfAbsent(getImageKey(imageReference) + ":" + tag,
+                key -> new ModuleImage(resourceName, tag));
+        synchronized (moduleImage) {
+            if (!moduleImage.isLoaded()) {
+                BuildableManifestTemplate manifest = pullManifestIfExists(registryClient, imageReference, tag);
+                ContainerConfigurationTemplate configuration = null;
+                if (manifest != null) {
+                    configuration = JsonTemplateMapper.readJson(pullConfiguration(registryClient, imageReference,
+                            manifest.getContainerConfiguration().getDigest()), ContainerConfigurationTemplate.class);
+                }
+                moduleImage.load(manifest, configuration);
+            }
+        }
+        return moduleImage;
+    }
+
+    /**
+     * Waits for puts running in the background, then for the manifests of the module images and version indexes they
+     * changed to be pushed
+     */
+    private void awaitPuts() throws TransferFailedException {
+        pendingCompanionsOf = null;
         try {
-            List<BuildableManifestTemplate.ContentDescriptorTemplate> layers = v1.getManifest().getLayers();
-            BuildableManifestTemplate.ContentDescriptorTemplate contentDescriptorTemplate = layers.get(0);
-            Blob blob = registryClient.pullBlob(contentDescriptorTemplate.getDigest(), ignored -> {
-            }, ignored -> {
-            });
+            transfers.drain();
+        } finally {
+            pushModuleImages(Collections.emptyList());
+            transfers.drain();
+        }
+    }
+
+    /**
+     * Pushes the manifests of the module images and version indexes that changed, in the background after the puts to
+     * the same image repository
+     *
+     * @param except keys of images not to push yet as more files are about to be put into them
+     */
+    private void pushModuleImages(Collection<String> except) throws TransferFailedException {
+        for (Map.Entry<String, ModuleImage> entry : moduleImages.entrySet()) {
+            ModuleImage moduleImage = entry.getValue();
+            if (!except.contains(entry.getKey()) && !moduleImage.isPushed()) {
+                // tags aren't part of the key puts to the same image repository are ordered by
+                String repositoryKey = entry.getKey().substring(0, entry.getKey().lastIndexOf(':'));
+                transfers.submit(repositoryKey, "manifest of " + entry.getKey(), () -> pushModuleManifest(moduleImage));
+            }
+        }
+    }
+
+    private void pushModuleManifest(ModuleImage moduleImage) throws TransferFailedException {
+        if (moduleImage.isPushed()) {
+            return;
+        }
+        String resourceName = moduleImage.getResourceName();
+        try {
+            RegistryClient registryClient = getRegistryClient(resourceName);
+            ImageReference imageReference = getImageReference(resourceName);
+            if (VERSION_INDEX_TAG.equals(moduleImage.getTag())) {
+                // other builds may have deployed other versions since we loaded the index
+                mergeVersionIndex(moduleImage, registryClient, imageReference);
+            }
+            ModuleImage.Snapshot snapshot = moduleImage.snapshot(imageFormat);
+            if (snapshot == null) {
+                return;
+            }
+            ContainerConfigurationTemplate configuration = snapshot.getConfiguration();
+            BlobDescriptor configurationDescriptor = Digests.computeDigest(configuration);
+            snapshot.getManifest().setContainerConfiguration(configurationDescriptor.getSize(), configurationDescriptor.getDigest());
+            pushBlobIfMissing(registryClient, imageReference, configurationDescriptor.getDigest(), Blobs.from(configuration), null, null, false);
+            if (VERSION_INDEX_TAG.equals(moduleImage.getTag())) {
+                pushBlobIfMissing(registryClient, imageReference, EMPTY_TAR_DIGEST, Blobs.from(out -> out.write(EMPTY_TAR), true), null, null, false);
+            }
+            DescriptorDigest imageDigest = pushManifest(registryClient, imageReference, snapshot.getManifest(), moduleImage.getTag());
+            moduleImage.pushed(snapshot);
+            LOG.debug("Successfully pushed manifest [{}] of module image [{}]", imageDigest, imageReference);
+        } catch (Exception e) {
+            LOG.error("Error while pushing module image of [{}]", resourceName, e);
+            invalidateRegistryClient(resourceName);
+            throw new TransferFailedException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if any of the blobs was skipped only because the known blob cache says the registry has it
+     */
+    private boolean pushBlobs(RegistryClient registryClient, ImageReference imageReference, DescriptorDigest layerDigest, LayerBuffer layer,
+                              TransferProgress progress, DescriptorDigest configurationDigest, Blob configurationBlob, boolean useKnownBlobs) throws IOException, RegistryException {
+        CompletableFuture<Boolean> configurationPush = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pushBlobIfMissing(registryClient, imageReference, configurationDigest, configurationBlob, null, null, useKnownBlobs);
+            } catch (IOException | RegistryException e) {
+                throw new CompletionException(e);
+            }
+        }, blobTransfers);
+        boolean skipped;
+        try {
+            skipped = pushBlobIfMissing(registryClient, imageReference, layerDigest, layer.toBlob(), layer, progress, useKnownBlobs);
+        } catch (IOException | RegistryException | RuntimeException e) {
+            // doesn't leave the configuration upload running behind our back
+            configurationPush.exceptionally(t -> false).join();
+            throw e;
+        }
+        return awaitBlobUpload(configurationPush) || skipped;
+    }
+
+    /**
+     * Snapshot redeploys often push blobs the registry already has, only pushes the blob if it's missing
+     *
+     * @param layer the layer being pushed if the blob is one, it can then be uploaded in chunks
+     * @param progress what the upload is reported to, can be null
+     * @return true if the blob was skipped only because the known blob cache says the registry has it
+     */
+    private boolean pushBlobIfMissing(RegistryClient registryClient, ImageReference imageReference, DescriptorDigest digest, Blob blob,
+                                      LayerBuffer layer, TransferProgress progress, boolean useKnownBlobs) throws IOException, RegistryException {
+        String registry = imageReference.getRegistry();
+        String repository = imageReference.getRepository();
+        if (useKnownBlobs && knownBlobs != null && knownBlobs.contains(registry, repository, digest.toString())) {
+            LOG.debug("Blob [{}] is known to be in [{}], skipping upload", digest, repository);
+            metrics.increment(WagonMetrics.Counter.KnownBlobHits);
+            return true;
+        }
+        // blobs nobody reports on are measured all the same
+        TransferProgress measured = progress != null ? progress : newTransferProgress(null, TransferEvent.REQUEST_PUT, false);
+        long sent = measured.getBytes();
+        long start = System.nanoTime();
+        try {
+            if (retries.call(registry, "HEAD blob " + digest, () -> registryClient.checkBlob(digest)).isPresent()) {
+                LOG.debug("Blob [{}] already exists in [{}], skipping upload", digest, repository);
+            } else {
+                String sourceRepository = getMountSource(imageReference, digest);
+                if (sourceRepository != null && mountBlob(registry, repository, digest, sourceRepository)) {
+                    LOG.debug("Mounted blob [{}] from [{}] into [{}]", digest, sourceRepository, repository);
+                    knownBlobs.add(registry, repository, digest.toString());
+                    return false;
+                }
+                // large layers are uploaded in chunks so that a failure doesn't start the whole upload over
+                if (layer != null && chunkedUploads != null && layer.getSize() > uploadChunkSize
+                        && chunkedUploads.upload(registry, repository, digest, layer, BearerTokenCache.authorizationOf(registryClient),
+                        measured.newOutputStream())) {
+                    LOG.debug("Uploaded blob [{}] to [{}] in chunks of {} bytes", digest, repository, uploadChunkSize);
+                    if (knownBlobs != null) {
+                        knownBlobs.add(registry, repository, digest.toString());
+                    }
+                    return false;
+                }
+                if (blob.isRetryable()) {
+                    retries.call(registry, "push of blob " + digest, () -> pushBlob(registryClient, digest, measured.newBlob(blob)));
+                } else {
+                    pushBlob(registryClient, digest, measured.newBlob(blob));
+                }
+            }
+        } finally {
+            metrics.add(WagonMetrics.Counter.BytesUploaded, measured.getBytes() - sent);
+            record(WagonMetrics.Phase.PushBlob, start);
+        }
+        if (knownBlobs != null) {
+            knownBlobs.add(registry, repository, digest.toString());
+        }
+        return false;
+    }
+
+    /**
+     * @param start when the phase started, from {@link System#nanoTime()}
+     */
+    private void record(WagonMetrics.Phase phase, long start) {
+        metrics.record(phase, start);
+        if (trace != null) {
+            trace.complete(phase.name(), "wagon", start, System.nanoTime());
+        }
+    }
+
+    private static boolean pushBlob(RegistryClient registryClient, DescriptorDigest digest, Blob blob)
+            throws IOException, RegistryException {
+        return registryClient.pushBlob(digest, blob, null, ignored -> {
+        });
+    }
+
+    private DescriptorDigest pushManifest(RegistryClient registryClient, ImageReference imageReference, ManifestTemplate manifest,
+                                          String tag) throws IOException, RegistryException {
+        return retries.call(imageReference.getRegistry(), "PUT manifest " + tag, () -> {
+            long start = System.nanoTime();
+            try {
+                return registryClient.pushManifest(manifest, tag);
+            } finally {
+                record(WagonMetrics.Phase.PushManifest, start);
+            }
+        });
+    }
+
+    /**
+     * @return the image configuration with the given digest
+     */
+    private String pullConfiguration(RegistryClient registryClient, ImageReference imageReference, DescriptorDigest digest)
+            throws IOException {
+        return retries.call(imageReference.getRegistry(), "GET blob " + digest, () -> {
+            long start = System.nanoTime();
+            try {
+                return Blobs.writeToString(registryClient.pullBlob(digest, ignored -> {
+                }, ignored -> {
+                }));
+            } finally {
+                record(WagonMetrics.Phase.PullBlob, start);
+            }
+        });
+    }
+
+    /**
+     * @param report whether to tell transfer listeners about the transfer, which is only right if Maven waits for it
+     */
+    private TransferProgress newTransferProgress(Resource resource, int requestType, boolean report) {
+        return new TransferProgress(resource, requestType, report ? transferEventSupport : null, this, progressGranularity, progressInterval);
+    }
+
+    /**
+     * Artifacts get a line each so that slow uploads show in deploy logs, their checksums and signatures would drown them
+     */
+    private static void logUpload(TransferProgress progress) {
+        String resourceName = progress.getResource().getName();
+        if (progress.getBytes() == 0) {
+            LOG.debug("Upload of [{}] skipped, the registry has it: {}", resourceName, progress);
+        } else if (isCompanion(resourceName)) {
+            LOG.debug("Uploaded [{}]: {}", resourceName, progress);
+        } else {
+            LOG.info("Uploaded [{}]: {}", resourceName, progress);
+        }
+    }
+
+    /**
+     * Identical content deployed under different coordinates ends up in different image repositories, if we know of a
+     * repository that has the blob the registry can link it instead of us uploading it again.
+     *
+     * @return the repository to mount the blob from, null if there's none
+     */
+    private String getMountSource(ImageReference imageReference, DescriptorDigest digest) {
+        if (knownBlobs == null) {
+            return null;
+        }
+        String registry = imageReference.getRegistry();
+        String repository = imageReference.getRepository();
+        List<String> candidates = knownBlobs.getRepositories(registry, digest.toString());
+        candidates.remove(repository);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        // the most recent one is the least likely to have been deleted since
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Asks the registry to link a blob of another repository, see
+     * https://github.com/opencontainers/distribution-spec/blob/main/spec.md#mounting-a-blob-from-another-repository
+     *
+     * The request needs a token that can also pull from the source repository. It goes through our own client rather
+     * than Jib's, which is shared by every put to the repository and keeps the token it has.
+     *
+     * @return false if the blob wasn't mounted and has to be uploaded
+     */
+    private boolean mountBlob(String registry, String repository, DescriptorDigest digest, String sourceRepository) {
+        try {
+            Optional<Authorization> token = bearerTokens.getMountAuthorization(registry, repository, sourceRepository);
+            Authorization authorization = token.isPresent() ? token.get() : getBasicAuthorization();
+            String url = "/v2/" + repository + "/blobs/uploads/?mount=" + digest + "&from=" + sourceRepository;
+            HttpResponse response = retries.call(registry, "mount of blob " + digest,
+                    () -> registryHttp.execute(registry, "POST", url, new EmptyContent(), null, authorization));
+            try {
+                if (response.getStatusCode() == 201) {
+                    return true;
+                }
+            } finally {
+                response.ignore();
+            }
+            // the registry opened an upload session instead, e.g because the source repository lost the blob
+            LOG.debug("Registry didn't mount [{}] from [{}] into [{}]", digest, sourceRepository, repository);
+            try {
+                registryHttp.execute(registry, "DELETE", RegistryHttpClient.getLocation(response), null, null, authorization).ignore();
+            } catch (IOException e) {
+                LOG.debug("Error cancelling upload session of [{}] in [{}]", digest, repository, e);
+            }
+        } catch (IOException e) {
+            LOG.debug("Error mounting [{}] from [{}] into [{}]", digest, sourceRepository, repository, e);
+        }
+        return false;
+    }
+
+    private void forgetKnownBlob(ImageReference imageReference, DescriptorDigest digest) {
+        if (knownBlobs != null) {
+            knownBlobs.remove(imageReference.getRegistry(), imageReference.getRepository(), digest.toString());
+        }
+    }
+
+    private static <T> T awaitBlobUpload(CompletableFuture<T> upload) throws IOException, RegistryException {
+        try {
+            return upload.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RegistryException) {
+                throw (RegistryException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isCompanion(String resourceName) {
+        return COMPANION_EXTENSIONS.stream().anyMatch(resourceName::endsWith);
+    }
+
+    /**
+     * @return the artifact the checksum or signature belongs to, e.g {@code a.jar} for {@code a.jar.asc.sha1}
+     */
+    private static String getCompanionOwner(String resourceName) {
+        while (isCompanion(resourceName)) {
+            resourceName = resourceName.substring(0, resourceName.lastIndexOf('.'));
+        }
+        return resourceName;
+    }
+
+    private LayerCompression getLayerCompression(String resourceName, BuildableManifestTemplate.ContentDescriptorTemplate layer) throws TransferFailedException {
+        try {
+            return LayerCompression.of(layer);
+        } catch (IOException e) {
+            throw new TransferFailedException("Error reading layer media type of " + resourceName, e);
+        }
+    }
+
+    private LayerCompression getLayerCompression(String resourceName, ManifestMetadataCache.Metadata metadata) throws TransferFailedException {
+        // entries cached before layers could be compressed any other way don't have a media type
+        if (metadata.getLayerMediaType() == null) {
+            return LayerCompression.Gzip;
+        }
+        try {
+            return LayerCompression.fromMediaType(metadata.getLayerMediaType());
+        } catch (IOException e) {
+            throw new TransferFailedException("Error reading layer media type of " + resourceName, e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 
-            try (ByteArrayOutputStream ba = new ByteArrayOutputStream()) {
-                blob.writeTo(ba);
-                try (GzipCompressorInputStream gzipIn    = new GzipCompressorInputStream(new ByteArrayInputStream(ba.toByteArray()));
-                     TarArchiveInputStream tarIn         = new TarArchiveInputStream(gzipIn);
-                     FileOutputStream output             = new FileOutputStream(destination);
-                     FilterProgressOutputStream progress = new FilterProgressOutputStream(output, this.transferEventSupport, this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET)){
+    /**
+     * @param size size of the layer, -1 if unknown
+     */
+    private void copyResource(String resourceName, File destination, RegistryClient registryClient, DescriptorDigest digest, long size,
+                              LayerCompression compression) throws TransferFailedException, ResourceDoesNotExistException {
 
-                    tarIn.getNextEntry();
-                    IOUtils.copy(tarIn, progress);
+        Resource resource = new Resource(resourceName);
+        fireTransferStartedEvent(resource);
+        try {
+            // once opened, the blob can be read even if another build evicts it
+            InputStream cached = pulledBlobs != null ? pulledBlobs.open(digest) : null;
+            if (cached != null) {
+                LOG.debug("Using cached blob [{}] for [{}]", digest, resourceName);
+                metrics.increment(WagonMetrics.Counter.BlobCacheHits);
+                long start = System.nanoTime();
+                try (InputStream cachedIn = cached) {
+                    extractLayer(compression.decompress(cachedIn), destination, resource);
+                } finally {
+                    record(WagonMetrics.Phase.Unpack, start);
+                }
+            } else if (rangedDownloads != null && rangedDownloads.isRanged(size) && downloadInRanges(resourceName, destination, registryClient,
+                    digest, size, compression, resource)) {
+                LOG.debug("Downloaded blob [{}] for [{}] before extracting it", digest, resourceName);
+            } else {
+                long start = System.nanoTime();
+                try {
+                    // the registry turns the request down before sending anything, nothing was extracted yet when it's retried
+                    retries.call(getImageReference(resourceName).getRegistry(), "GET blob " + digest, () -> {
+                        try (BlobCache.Entry cacheEntry = pulledBlobs != null ? pulledBlobs.newEntry(digest) : null) {
+                            Blob blob = registryClient.pullBlob(digest, ignored -> {
+                            }, ignored -> {
+                            });
+                            if (cacheEntry != null) {
+                                blob = cacheEntry.tee(blob);
+                            }
+                            // the layer is decompressed and written to disk while it's being downloaded
+                            try (BlobInputStream blobIn = new BlobInputStream(blob, transfers)) {
+                                // closing the extracted entry would stop the download before its digest gets verified
+                                extractLayer(compression.decompress(new CloseShieldFilterInputStream(blobIn)), destination, resource);
+                                // makes sure the whole layer was read so its digest gets verified
+                                blobIn.finish();
+                            }
+                            if (cacheEntry != null) {
+                                cacheEntry.commit();
+                            }
+                        }
+                        return null;
+                    });
+                    metrics.add(WagonMetrics.Counter.BytesDownloaded, Math.max(size, 0));
+                } finally {
+                    record(WagonMetrics.Phase.PullBlob, start);
                 }
             }
             fireTransferCompletedEvent(resource, TransferEvent.TRANSFER_COMPLETED);
         } catch (IOException e) {
             fireTransferCompletedEvent(resource, TransferEvent.TRANSFER_ERROR);
+            if (destination.exists() && !destination.delete()) {
+                LOG.debug("Could not delete partially written [{}]", destination);
+            }
             throw new TransferFailedException(e.getMessage());
         }
     }
 
+    /**
+     * The layer can only be extracted once it's fully downloaded, large layers still get there faster
+     *
+     * @return false if the download failed and the layer should be downloaded sequentially instead
+     */
+    private boolean downloadInRanges(String resourceName, File destination, RegistryClient registryClient, DescriptorDigest digest, long size,
+                                     LayerCompression compression, Resource resource) throws IOException, ResourceDoesNotExistException {
+        ImageReference imageReference = getImageReference(resourceName);
+        try (BlobCache.Entry cacheEntry = pulledBlobs != null ? pulledBlobs.newEntry(digest) : null) {
+            Path file = cacheEntry != null ? cacheEntry.getFile() : Files.createTempFile("wagon-docker-registry-", ".blob");
+            try {
+                long start = System.nanoTime();
+                try {
+                    rangedDownloads.download(imageReference.getRegistry(), imageReference.getRepository(), digest, size, file,
+                            BearerTokenCache.authorizationOf(registryClient));
+                    metrics.add(WagonMetrics.Counter.BytesDownloaded, size);
+                } catch (IOException e) {
+                    LOG.warn("Error downloading [{}] in ranges, downloading it again sequentially: {}", resourceName, e.getMessage());
+                    LOG.debug("Ranged download error", e);
+                    metrics.increment(WagonMetrics.Counter.Retries);
+                    return false;
+                } finally {
+                    record(WagonMetrics.Phase.PullBlob, start);
+                }
+                start = System.nanoTime();
+                try (InputStream in = Files.newInputStream(file)) {
+                    extractLayer(compression.decompress(in), destination, resource);
+                } finally {
+                    record(WagonMetrics.Phase.Unpack, start);
+                }
+                if (cacheEntry != null) {
+                    cacheEntry.commit();
+                }
+                return true;
+            } finally {
+                if (cacheEntry == null) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private void extractLayer(InputStream tarStream, File destination, Resource resource) throws IOException {
+        try (TarArchiveInputStream tarIn         = new TarArchiveInputStream(tarStream);
+             FileChannel output                  = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FilterProgressOutputStream progress = new FilterProgressOutputStream(NULL_OUTPUT_STREAM, this.transferEventSupport, this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET,
+                     progressGranularity, progressInterval)){
+
+            tarIn.getNextEntry();
+            // the channel writes the file, listeners are told about the bytes as they're read on their way to it
+            ReadableByteChannel entryIn = Channels.newChannel(new FilterInputStream(tarIn) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) {
+                        progress.write(b, off, count);
+                    }
+                    return count;
+                }
+            });
+            long position = 0;
+            long count;
+            while ((count = output.transferFrom(entryIn, position, progressGranularity)) > 0) {
+                position += count;
+            }
+        }
+    }
+
     private void fireTransferCompletedEvent(Resource resource, int transferCompleted) {
         TransferEvent success = new TransferEvent(this, resource, transferCompleted, TransferEvent.REQUEST_GET);
         this.transferEventSupport.fireTransferCompleted(success);
@@ -235,48 +1238,121 @@ public class DockerDistributionWagon implements Wagon {
         this.transferEventSupport.fireTransferInitiated(init);
     }
 
+    /**
+     * @return null if the manifest doesn't exist
+     */
+    private BuildableManifestTemplate pullManifestIfExists(RegistryClient registryClient, ImageReference imageReference, String tag)
+            throws IOException, RegistryException {
+        long start = System.nanoTime();
+        try {
+            return retries.call(imageReference.getRegistry(), "GET manifest " + tag,
+                    () -> registryClient.pullManifest(tag, BuildableManifestTemplate.class)).getManifest();
+        } catch (RegistryException e) {
+            if (e.getCause() instanceof ResponseException && ((ResponseException) e.getCause()).getStatusCode() == 404) {
+                metrics.increment(WagonMetrics.Counter.ManifestsNotFound);
+                return null;
+            }
+            throw e;
+        } finally {
+            record(WagonMetrics.Phase.GetManifest, start);
+        }
+    }
+
     private ManifestAndDigest<BuildableManifestTemplate> getManifest(String resourceName, RegistryClient registryClient) throws ResourceDoesNotExistException, TransferFailedException {
         String tag = getTag(resourceName);
+        ImageReference imageReference = getImageReference(resourceName);
+        long start = System.nanoTime();
         try {
-            return registryClient.pullManifest(tag, BuildableManifestTemplate.class);
+            return retries.call(imageReference.getRegistry(), "GET manifest " + tag,
+                    () -> registryClient.pullManifest(tag, BuildableManifestTemplate.class));
         } catch (RegistryException ex) {
             ResponseException responseException = (ResponseException) ex.getCause();
             if (404 == responseException.getStatusCode()) {
+                metrics.increment(WagonMetrics.Counter.ManifestsNotFound);
                 throw new ResourceDoesNotExistException(ex.getMessage());
             } else {
+                invalidateRegistryClient(resourceName);
                 throw new TransferFailedException(ex.getMessage());
             }
         } catch (IOException e) {
             LOG.error("Error while getting {}", resourceName, e);
+            invalidateRegistryClient(resourceName);
             throw new TransferFailedException(e.getMessage());
+        } finally {
+            record(WagonMetrics.Phase.GetManifest, start);
         }
     }
 
-    private boolean isOlder(String resourceName, long timestamp, RegistryClient registryClient, ManifestAndDigest<BuildableManifestTemplate> v1) throws TransferFailedException {
-        Blob cc = registryClient.pullBlob(v1.getManifest().getContainerConfiguration().getDigest(), ignored -> {
-        }, ignored -> {
-        });
+    /**
+     * @return the layer holding the given resource
+     * @throws ResourceDoesNotExistException if the resource isn't in its module image
+     */
+    private BuildableManifestTemplate.ContentDescriptorTemplate getLayer(String resourceName, BuildableManifestTemplate manifest)
+            throws ResourceDoesNotExistException {
+        if (imageNamingStrategy != ImageNamingStrategy.Module) {
+            return manifest.getLayers().get(0);
+        }
+        String title = getFileName(resourceName);
+        for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+            Map<String, String> annotations = layer.getAnnotations();
+            if (annotations != null && title.equals(annotations.get(ArtifactManifestTemplate.ANNOTATION_TITLE))) {
+                return layer;
+            }
+        }
+        throw new ResourceDoesNotExistException(resourceName + " isn't in its module image");
+    }
+
+    /**
+     * Module images hold several resources, each of them gets its own metadata
+     */
+    private String getMetadataTag(String resourceName) {
+        String tag = getTag(resourceName);
+        return imageNamingStrategy == ImageNamingStrategy.Module ? tag + "/" + getFileName(resourceName) : tag;
+    }
+
+    private static String getFileName(String resourceName) {
+        return resourceName.substring(resourceName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return when the artifact was created according to the layer's annotations, -1 if they don't say
+     */
+    private long getCreated(String resourceName, BuildableManifestTemplate.ContentDescriptorTemplate layer) {
+        Map<String, String> annotations = layer.getAnnotations();
+        if (annotations == null || !annotations.containsKey(ArtifactManifestTemplate.ANNOTATION_CREATED)) {
+            return -1;
+        }
         try {
-            String config = Blobs.writeToString(cc);
+            return Instant.parse(annotations.get(ArtifactManifestTemplate.ANNOTATION_CREATED)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            LOG.debug("Invalid creation time annotation for [{}]", resourceName, e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return when the artifact was created according to the image configuration, -1 if it can't be found out
+     */
+    private long getCreated(String resourceName, RegistryClient registryClient, DescriptorDigest configDigest) throws TransferFailedException {
+        try {
+            String config = pullConfiguration(registryClient, getImageReference(resourceName), configDigest);
             int start = config.indexOf("created") + 10;
             int end = config.indexOf("\"", start);
             String time = config.substring(start, end);
-            if (Instant.parse(time).toEpochMilli() >= timestamp) {
-                return true;
-            }
+            return Instant.parse(time).toEpochMilli();
         } catch (IOException e){
             throw new TransferFailedException("Error writing Blob to string", e);
         } catch (Exception e){
             LOG.debug("Error checking timestamp for Manifest [{}]. Assuming newer artifact is present", resourceName, e);
         }
-        return false;
+        return -1;
     }
 
     private String getTag(String destination) {
         try {
             String path = destination.substring(0, destination.lastIndexOf("/"));
             String tag = path.substring(path.lastIndexOf("/") + 1);
-            if (Character.isDigit(tag.charAt(0))) {
+            if (isVersion(tag)) {
                 return tag;
             }
             return "latest";
@@ -286,27 +1362,55 @@ public class DockerDistributionWagon implements Wagon {
         }
     }
 
+    private static DescriptorDigest computeDigest(byte[] data) {
+        try {
+            return Digests.computeDigest(new ByteArrayInputStream(data)).getDigest();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isVersion(String directoryName) {
+        return !directoryName.isEmpty() && Character.isDigit(directoryName.charAt(0));
+    }
+
     private RegistryClient getRegistryClient(String resourceName) throws TransferFailedException, ResourceDoesNotExistException {
-        String imageRepositoryName = getImageRepositoryName(resourceName);
-        // removes 'docker://' from repository url
-        String url = this.repository.getUrl().replaceFirst("docker://","");
-        String image = url + "/" +  imageRepositoryName;
+        ImageReference targetImageReference = getImageReference(resourceName);
+        String key = targetImageReference.getRegistry() + "/" + targetImageReference.getRepository();
+        return registryClients.get(key, () -> newRegistryClient(targetImageReference, resourceName));
+    }
 
-        ImageReference targetImageReference;
+    private RegistryClientPool.PooledClient newRegistryClient(ImageReference targetImageReference, String resourceName)
+            throws TransferFailedException {
+        long start = System.nanoTime();
         try {
-            targetImageReference = ImageReference.parse(image.toLowerCase());
-        } catch (InvalidImageReferenceException e) {
-            LOG.debug("Error building image reference [{}]", imageRepositoryName, e);
-            throw new ResourceDoesNotExistException(e.getMessage());
+            return authenticate(targetImageReference, resourceName);
+        } finally {
+            record(WagonMetrics.Phase.Authenticate, start);
         }
+    }
+
+    /**
+     * @return the client along with when the token it was given expires
+     */
+    private RegistryClientPool.PooledClient authenticate(ImageReference targetImageReference, String resourceName) throws TransferFailedException {
         String registry = targetImageReference.getRegistry();
         String repository = targetImageReference.getRepository();
-        RegistryClient.Factory factory = RegistryClient.factory(EventHandlers.NONE, registry, repository, client);
+        RegistryClient.Factory factory = RegistryClient.factory(eventBridge != null ? eventBridge.getEventHandlers() : EventHandlers.NONE,
+                registry, repository, client);
         boolean setupAuth = this.authenticationInfo != null;
         if(setupAuth) {
-            factory.setCredential(Credential.from(this.authenticationInfo.getUserName(), this.authenticationInfo.getPassword()));
+            factory.setCredential(getCredential());
         }
         RegistryClient registryClient = factory.newRegistryClient();
+        try {
+            Optional<Authorization> authorization = bearerTokens.getAuthorization(registry, repository, getCompanionRepositories(resourceName));
+            if (authorization.isPresent() && BearerTokenCache.authorize(registryClient, authorization.get())) {
+                return new RegistryClientPool.PooledClient(registryClient, bearerTokens.getExpiresAt(registry, repository));
+            }
+        } catch (Exception e) {
+            LOG.debug("Error getting a cached token for [{}], falling back to registry client authentication", resourceName, e);
+        }
         if (setupAuth) {
             try {
                 if (!registryClient.doPushBearerAuth()) {
@@ -316,7 +1420,65 @@ public class DockerDistributionWagon implements Wagon {
                 throw new TransferFailedException(e.getMessage());
             }
         }
-        return registryClient;
+        // Jib refreshes the tokens it gets by itself
+        return new RegistryClientPool.PooledClient(registryClient, RegistryClientPool.NEVER);
+    }
+
+    private Credential getCredential() {
+        if (this.authenticationInfo == null) {
+            return null;
+        }
+        return Credential.from(this.authenticationInfo.getUserName(), this.authenticationInfo.getPassword());
+    }
+
+    /**
+     * Maven follows up on every file with its checksums and signature, requesting their repositories along with the
+     * file's saves us from going back to the token server for each of them
+     */
+    private List<String> getCompanionRepositories(String resourceName) {
+        List<String> repositories = new ArrayList<>(COMPANION_EXTENSIONS.size());
+        if (isCompanion(resourceName)) {
+            return repositories;
+        }
+        for (String extension : COMPANION_EXTENSIONS) {
+            try {
+                repositories.add(getImageReference(resourceName + extension).getRepository());
+            } catch (ResourceDoesNotExistException e) {
+                LOG.debug("Error building image reference for [{}{}]", resourceName, extension, e);
+            }
+        }
+        return repositories;
+    }
+
+    /**
+     * Drops the cached client of the given resource so the next call authenticates again
+     */
+    private void invalidateRegistryClient(String resourceName) {
+        try {
+            ImageReference targetImageReference = getImageReference(resourceName);
+            registryClients.invalidate(targetImageReference.getRegistry() + "/" + targetImageReference.getRepository());
+            bearerTokens.invalidate(targetImageReference.getRegistry(), targetImageReference.getRepository());
+        } catch (ResourceDoesNotExistException e) {
+            LOG.debug("Error invalidating registry client for [{}]", resourceName, e);
+        }
+    }
+
+    private static String getImageKey(ImageReference imageReference) {
+        return imageReference.getRegistry() + "/" + imageReference.getRepository();
+    }
+
+    private ImageReference getImageReference(String resourceName) throws ResourceDoesNotExistException {
+        String imageRepositoryName = getImageRepositoryName(resourceName);
+        // removes 'docker://' from repository url
+        String url = this.repository.getUrl().replaceFirst("docker://","");
+        String image = url + "/" +  imageRepositoryName;
+
+        try {
+            return ImageReference.parse(image.toLowerCase());
+        } catch (InvalidImageReferenceException e) {
+            LOG.debug("Error building image reference [{}]", imageRepositoryName, e);
+            throw new ResourceDoesNotExistException(e.getMessage());
+        }
     }
 
     private String getImageRepositoryName(String resourceName) {
@@ -333,6 +1495,12 @@ public class DockerDistributionWagon implements Wagon {
                 } catch (NoSuchAlgorithmException e) {
                     throw new RuntimeException(e);
                 }
+            case Module:
+                int separator = resourceName.lastIndexOf('/');
+                if (separator < 0) {
+                    return "maven";
+                }
+                return "maven_" + resourceName.substring(0, separator).toLowerCase().replaceAll("\\.|/","_");
             default:
                 String imageRepositoryName = resourceName.toLowerCase();
                 return "maven_" + imageRepositoryName.replaceAll("\\.|/","_");
@@ -379,33 +1547,296 @@ public class DockerDistributionWagon implements Wagon {
         }
     }
 
+    /**
+     * Puts a whole directory tree as a single image, whose layers pack as many files as fit in {@code directoryLayerSize}
+     * bytes. The next layer is packed while the previous ones are uploaded, and the manifest lists the files of each
+     * layer so that {@link #getFileList} doesn't have to fetch them.
+     *
+     * With the Module strategy, files are put one by one instead: they then end up in the image of their own directory,
+     * which already gets a single manifest, and can be got individually.
+     */
     @Override
-    public void putDirectory(File sourceDirectory, String destinationDirectory) throws TransferFailedException {
-       throw new TransferFailedException("putDirectory not supported!!!");
+    public void putDirectory(File sourceDirectory, String destinationDirectory) throws TransferFailedException, ResourceDoesNotExistException {
+        transfers.throwFailures();
+        Path root = sourceDirectory.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new TransferFailedException("Error listing files of " + sourceDirectory, e);
+        }
+        String directory = trimSlashes(destinationDirectory);
+        if (imageNamingStrategy == ImageNamingStrategy.Module) {
+            for (Path file : files) {
+                String name = getRelativeName(root, file);
+                put(file.toFile(), directory.isEmpty() ? name : directory + "/" + name);
+            }
+            return;
+        }
+        if (files.isEmpty()) {
+            LOG.debug("Nothing to put in [{}]", sourceDirectory);
+            return;
+        }
+        String imageResource = getDirectoryImageResource(directory);
+        RegistryClient registryClient = getRegistryClient(imageResource);
+        ImageReference imageReference = getImageReference(imageResource);
+        ArtifactManifestTemplate manifest = new ArtifactManifestTemplate(imageFormat);
+        ContainerConfigurationTemplate containerConfiguration = new ContainerConfigurationTemplate();
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+        long lastModified = 0;
+        try {
+            int next = 0;
+            while (next < files.size()) {
+                LayerBuffer layer = new LayerBuffer(inMemoryLayerLimit);
+                try {
+                    long start = System.nanoTime();
+                    CountingDigestOutputStream cfo = new CountingDigestOutputStream(layer.getOutputStream());
+                    OutputStream compressedOut = compress(cfo);
+                    CountingDigestOutputStream cfoTar = new CountingDigestOutputStream(compressedOut);
+                    TarArchiveOutputStream tOut = newTarOutputStream(cfoTar);
+                    StringBuilder layerFiles = new StringBuilder();
+                    long layerSize = 0;
+                    long layerLastModified = 0;
+                    // files are never split across layers, a large one gets a layer of its own
+                    do {
+                        Path file = files.get(next++);
+                        String name = getRelativeName(root, file);
+                        tOut.putArchiveEntry(new TarArchiveEntry(file.toFile(), name));
+                        Files.copy(file, tOut);
+                        tOut.closeArchiveEntry();
+                        layerFiles.append(layerFiles.length() == 0 ? "" : "\n").append(name);
+                        layerSize += Files.size(file);
+                        layerLastModified = Math.max(layerLastModified, Files.getLastModifiedTime(file).toMillis());
+                    } while (next < files.size() && layerSize < directoryLayerSize);
+                    tOut.finish();
+                    compressedOut.close();
+                    record(WagonMetrics.Phase.Pack, start);
+
+                    BlobDescriptor blobDescriptor = cfo.computeDigest();
+                    containerConfiguration.addLayerDiffId(cfoTar.computeDigest().getDigest());
+                    Map<String, String> layerAnnotations = new LinkedHashMap<>();
+                    layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_CREATED, Instant.ofEpochMilli(layerLastModified).toString());
+                    layerAnnotations.put(ArtifactManifestTemplate.ANNOTATION_FILES, layerFiles.toString());
+                    manifest.addLayer(layerCompression, blobDescriptor.getSize(), blobDescriptor.getDigest(), layerAnnotations);
+                    lastModified = Math.max(lastModified, layerLastModified);
+
+                    // bounds the layers waiting to be uploaded
+                    if (uploads.size() >= putConcurrency) {
+                        awaitBlobUpload(uploads.get(uploads.size() - putConcurrency));
+                    }
+                    LayerBuffer pending = layer;
+                    layer = null;
+                    uploads.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            pushBlobIfMissing(registryClient, imageReference, blobDescriptor.getDigest(), pending.toBlob(), pending, null, false);
+                        } catch (IOException | RegistryException e) {
+                            throw new CompletionException(e);
+                        } finally {
+                            pending.close();
+                        }
+                    }, blobTransfers));
+                } finally {
+                    if (layer != null) {
+                        layer.close();
+                    }
+                }
+            }
+            for (CompletableFuture<Void> upload : uploads) {
+                awaitBlobUpload(upload);
+            }
+            containerConfiguration.setCreated(Instant.ofEpochMilli(lastModified).toString());
+            BlobDescriptor configurationDescriptor = Digests.computeDigest(containerConfiguration);
+            manifest.setContainerConfiguration(configurationDescriptor.getSize(), configurationDescriptor.getDigest());
+            pushBlobIfMissing(registryClient, imageReference, configurationDescriptor.getDigest(), Blobs.from(containerConfiguration), null, null, false);
+            DescriptorDigest imageDigest = pushManifest(registryClient, imageReference, manifest, getTag(directory + "/"));
+            LOG.debug("Successfully pushed manifest [{}] of {} files in {} layers", imageDigest, files.size(), manifest.getLayers().size());
+        } catch (Exception e) {
+            LOG.error("Error while putting directory [{}]", destinationDirectory, e);
+            // doesn't leave uploads running behind our back
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null).join();
+            invalidateRegistryClient(imageResource);
+            throw new TransferFailedException(e.getMessage());
+        }
+    }
+
+    /**
+     * Directories put by {@link #putDirectory} are named like resources, except with the Module strategy where a
+     * directory's image is the one holding the files directly under it
+     */
+    private String getDirectoryImageResource(String directory) {
+        return imageNamingStrategy == ImageNamingStrategy.Module ? directory + "/" : directory;
+    }
+
+    private static String getRelativeName(Path root, Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
     }
 
     @Override
     public boolean resourceExists(String resourceName) throws TransferFailedException{
+        awaitPuts();
         RegistryClient registryClient;
         try {
             registryClient = getRegistryClient(resourceName);
             String tag = getTag(resourceName);
-            return registryClient.checkManifest(tag).isPresent();
+            if (imageNamingStrategy == ImageNamingStrategy.Module) {
+                // the image holds other resources as well
+                getLayer(resourceName, getManifest(resourceName, registryClient).getManifest());
+                return true;
+            }
+            try {
+                return headManifest(registryClient, getImageReference(resourceName), tag).isPresent();
+            } catch (IOException e) {
+                LOG.debug("Error checking manifest of [{}], falling back to pulling it", resourceName, e);
+            }
+            long start = System.nanoTime();
+            try {
+                boolean exists = retries.call(getImageReference(resourceName).getRegistry(), "HEAD manifest " + tag,
+                        () -> registryClient.checkManifest(tag)).isPresent();
+                if (!exists) {
+                    metrics.increment(WagonMetrics.Counter.ManifestsNotFound);
+                }
+                return exists;
+            } finally {
+                record(WagonMetrics.Phase.GetManifest, start);
+            }
         } catch (ResourceDoesNotExistException e) {
             return false;
         } catch (Exception e) {
+            invalidateRegistryClient(resourceName);
             throw new TransferFailedException(e.getMessage());
         }
     }
 
+    /**
+     * Lists the versions and files put into a directory from its version index, or the version index of the directory
+     * holding it.
+     *
+     * The index only knows about files put while it's enabled, so directories are also listed from the manifest of the
+     * image of a directory put by {@link #putDirectory}, or of one of its parents. With the Module strategy, the files put
+     * into the directory's image are listed as well. With the None strategy, image repositories are named after their
+     * resources so the registry's catalog is listed too.
+     */
     @Override
-    public List<String> getFileList(String destinationDirectory) throws TransferFailedException {
-        throw new TransferFailedException("getFileList not supported!!!");
+    public List<String> getFileList(String destinationDirectory) throws TransferFailedException, ResourceDoesNotExistException {
+        awaitPuts();
+        String directory = trimSlashes(destinationDirectory);
+        String imageResource = getDirectoryImageResource(directory);
+        Set<String> entries = new TreeSet<>();
+        boolean exists = false;
+        try {
+            String indexDirectory = getVersionIndexDirectory(directory + "/");
+            if (indexDirectory != null) {
+                String subDirectory = directory.equals(indexDirectory) ? "" : directory.substring(indexDirectory.length() + 1) + "/";
+                exists = addFileListEntries(entries, indexDirectory, subDirectory, VERSION_INDEX_TAG);
+            }
+            // the directory may be part of a tree put from one of its parents
+            String ancestor = directory;
+            String subDirectory = "";
+            boolean listed = false;
+            while (!listed) {
+                listed = addFileListEntries(entries, ancestor, subDirectory, getTag(ancestor + "/"));
+                exists |= listed;
+                int separator = ancestor.lastIndexOf('/');
+                if (ancestor.isEmpty() || separator < 0) {
+                    break;
+                }
+                subDirectory = ancestor.substring(separator + 1) + "/" + subDirectory;
+                ancestor = ancestor.substring(0, separator);
+            }
+            if (imageNamingStrategy == ImageNamingStrategy.None) {
+                ImageReference imageReference = getImageReference(imageResource);
+                String prefix = imageReference.getRepository() + "/";
+                List<String> repositories = registryHttp.listRepositories(imageReference.getRegistry(), prefix,
+                        getCatalogAuthorization(imageReference.getRegistry()));
+                exists |= !repositories.isEmpty();
+                for (String repository : repositories) {
+                    addFileListEntry(entries, repository.substring(prefix.length()));
+                }
+            }
+        } catch (IOException | RegistryException e) {
+            LOG.error("Error while listing [{}]", destinationDirectory, e);
+            invalidateRegistryClient(imageResource);
+            throw new TransferFailedException(e.getMessage());
+        }
+        if (!exists) {
+            throw new ResourceDoesNotExistException("Could not find directory " + destinationDirectory);
+        }
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Adds the entries of a directory found in the manifest of an image of the given directory
+     *
+     * @param subDirectory path of the directory to list relative to the image's directory, with a trailing slash, empty to
+     *                     list the image's directory itself
+     * @param tag either the tag of the directory's image or of its version index
+     * @return false if the image doesn't have the directory
+     */
+    private boolean addFileListEntries(Set<String> entries, String directory, String subDirectory, String tag) throws IOException,
+            RegistryException, TransferFailedException, ResourceDoesNotExistException {
+        String imageResource = getDirectoryImageResource(directory);
+        BuildableManifestTemplate manifest = pullManifestIfExists(getRegistryClient(imageResource), getImageReference(imageResource), tag);
+        if (manifest == null) {
+            return false;
+        }
+        boolean found = subDirectory.isEmpty();
+        for (BuildableManifestTemplate.ContentDescriptorTemplate layer : manifest.getLayers()) {
+            Map<String, String> annotations = layer.getAnnotations();
+            if (annotations != null && annotations.containsKey(ArtifactManifestTemplate.ANNOTATION_FILES)) {
+                for (String file : annotations.get(ArtifactManifestTemplate.ANNOTATION_FILES).split("\\n")) {
+                    if (file.startsWith(subDirectory)) {
+                        addFileListEntry(entries, file.substring(subDirectory.length()));
+                        found = true;
+                    }
+                }
+            } else if (annotations != null && annotations.containsKey(ArtifactManifestTemplate.ANNOTATION_TITLE) && subDirectory.isEmpty()) {
+                entries.add(annotations.get(ArtifactManifestTemplate.ANNOTATION_TITLE));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds the entry of the directory leading to the given file, with a trailing slash if it's a sub directory
+     */
+    private static void addFileListEntry(Set<String> entries, String relativePath) {
+        int separator = relativePath.indexOf('/');
+        entries.add(separator < 0 ? relativePath : relativePath.substring(0, separator + 1));
+    }
+
+    private Authorization getCatalogAuthorization(String registry) throws IOException {
+        Optional<Authorization> authorization = bearerTokens.getCatalogAuthorization(registry);
+        if (authorization.isPresent()) {
+            return authorization.get();
+        }
+        return getBasicAuthorization();
+    }
+
+    /**
+     * Registries without bearer tokens take the credentials as they are
+     *
+     * @return null if there are no credentials
+     */
+    private Authorization getBasicAuthorization() {
+        Credential credential = getCredential();
+        return credential == null ? null : Authorization.fromBasicCredentials(credential.getUsername(), credential.getPassword());
     }
 
     @Override
     public boolean supportsDirectoryCopy() {
-        return false;
+        return true;
     }
 
     @Override
@@ -419,9 +1850,35 @@ public class DockerDistributionWagon implements Wagon {
         this.proxyInfoProvider = proxyInfoProvider;
         this.authenticationInfo = authenticationInfo;
         activateHttpAndHttpsProxies();
+        if (!layerCompression.isAvailable()) {
+            LOG.warn("{} layers need com.github.luben:zstd-jni on the classpath, compressing layers with Gzip instead", layerCompression);
+            layerCompression = LayerCompression.Gzip;
+        }
+        if (!layerCompression.supports(imageFormat)) {
+            LOG.warn("{} images can't have {} layers, pushing OCI images instead", imageFormat, layerCompression);
+            imageFormat = ImageFormat.OCI;
+        }
+        this.registryClients = new RegistryClientPool();
+        this.transfers = new TransferExecutor(putConcurrency);
+        this.blobTransfers = TransferExecutor.newExecutorService("wagon-docker-registry-blob-", 0);
+        this.compressionPool = compressionThreads > 1 ? new ForkJoinPool(compressionThreads) : null;
+        this.registryHttp = new RegistryHttpClient(allowInsecureRegistries, sendAuthorizationOverHttp);
+        this.knownBlobs = knownBlobCache ? new KnownBlobIndex(cacheDirectory.toPath().resolve("known-blobs")) : null;
+        this.pulledBlobs = blobCache ? new BlobCache(cacheDirectory.toPath(), blobCacheMaxSize) : null;
+        this.manifestMetadata = metadataCache ? new ManifestMetadataCache(cacheDirectory.toPath().resolve("manifests")) : null;
+        this.trace = traceFile != null ? ChromeTrace.writtenOnExit(traceFile.toPath()) : null;
+        this.eventBridge = jibEvents || trace != null ? new JibEventBridge(trace) : null;
         this.client = new FailoverHttpClient(allowInsecureRegistries,
                 sendAuthorizationOverHttp,
-                EventHandlers.NONE::dispatch);
+                eventBridge != null ? eventBridge::log : EventHandlers.NONE::dispatch);
+        this.bearerTokens = new BearerTokenCache(client, getCredential());
+        this.retries = new RetryPolicy(maxRetries, retryBackoff, maxRetryBackoff, registryConcurrency, metrics);
+        this.chunkedUploads = uploadChunkSize > 0 ? new ChunkedBlobUploader(registryHttp, retries, uploadChunkSize) : null;
+        this.rangedDownloads = downloadConnections > 1 ? new RangedBlobDownloader(registryHttp, retries, blobTransfers, downloadConnections)
+                : null;
+        if (metricsSummary) {
+            metrics.logSummaryOnExit();
+        }
     }
 
     @Override
@@ -461,11 +1918,32 @@ public class DockerDistributionWagon implements Wagon {
 
     @Override
     public void disconnect() throws ConnectionException {
+        TransferFailedException failure = null;
+        try {
+            // waits for asynchronous puts and the images they changed to be pushed
+            awaitPuts();
+        } catch (TransferFailedException e) {
+            failure = e;
+        } finally {
+            this.transfers.shutdown();
+            this.blobTransfers.shutdown();
+            if (this.compressionPool != null) {
+                this.compressionPool.shutdown();
+            }
+        }
+        this.registryClients.clear();
+        this.bearerTokens.clear();
+        this.prefetched.clear();
+        this.moduleImages.clear();
         try {
             this.client.shutDown();
+            this.registryHttp.close();
         } catch (IOException e) {
             throw new ConnectionException(e.getMessage());
         }
+        if (failure != null) {
+            throw new ConnectionException(failure.getMessage(), failure);
+        }
     }
 
     @Override
@@ -19,39 +19,101 @@ package com.github.johnpoth;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 import org.apache.maven.wagon.Wagon;
 import org.apache.maven.wagon.events.TransferEvent;
 import org.apache.maven.wagon.events.TransferEventSupport;
 import org.apache.maven.wagon.resource.Resource;
 
+/**
+ * Reports the bytes written through it to the wagon's transfer listeners.
+ *
+ * Listeners get the data itself, which some use e.g to compute checksums, so every byte is reported once and in order.
+ * Writes are coalesced into reports of {@code granularity} bytes, sent earlier once {@code interval} went by since the
+ * last one, so that listeners are called a bounded number of times however small the writes are. Writes of a whole
+ * report starting at the beginning of the caller's buffer are handed over as they are, others are copied to a buffer
+ * of the stream's: writing doesn't allocate. The same event is sent with every report.
+ */
 public class FilterProgressOutputStream extends FilterOutputStream {
 
+    public static final int DEFAULT_GRANULARITY = 64 * 1024;
+    public static final long DEFAULT_INTERVAL = 1000;
+
     private final TransferEventSupport transferEventSupport;
-    private final Wagon wagon;
-    private final Resource resource;
-    private final int eventType;
-    private final int requestType;
+    private final TransferEvent event;
+    private final byte[] pending;
+    private int pendingLength;
+    private final long intervalNanos;
+    private long lastReport = System.nanoTime();
 
     public FilterProgressOutputStream(OutputStream out, TransferEventSupport transferEventSupport, Wagon wagon, Resource resource, int eventType, int requestType) {
+        this(out, transferEventSupport, wagon, resource, eventType, requestType, DEFAULT_GRANULARITY, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param granularity number of bytes listeners are told about at once, 1 reports every write as it happens
+     * @param interval time in milliseconds after which the bytes written so far are reported, even if there are less
+     *                 than {@code granularity}
+     */
+    public FilterProgressOutputStream(OutputStream out, TransferEventSupport transferEventSupport, Wagon wagon, Resource resource, int eventType, int requestType,
+                                      int granularity, long interval) {
         super(out);
+        if (granularity < 1) {
+            throw new IllegalArgumentException("Progress granularity must be at least 1 byte");
+        }
         this.transferEventSupport = transferEventSupport;
-        this.wagon = wagon;
-        this.resource = resource;
-        this.eventType = eventType;
-        this.requestType = requestType;
+        this.event = new TransferEvent(wagon, resource, eventType, requestType);
+        this.pending = new byte[granularity];
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        pending[pendingLength++] = (byte) b;
+        if (pendingLength == pending.length) {
+            report(pending, pendingLength);
+        }
     }
 
     @Override
     public void write(byte b[], int off, int len) throws IOException {
-        super.write(b, off, len);
-        if (off == 0) {
-            TransferEvent event = new TransferEvent(this.wagon, this.resource, this.eventType, this.requestType);
-            this.transferEventSupport.fireTransferProgress(event, b, len);
-        } else {
-            byte[] bytes = new byte[len];
-            System.arraycopy(b, off, bytes, 0, len);
-            TransferEvent event = new TransferEvent(this.wagon, this.resource, this.eventType, this.requestType);
-            this.transferEventSupport.fireTransferProgress(event, bytes, len);
+        // FilterOutputStream would write the buffer one byte at a time
+        out.write(b, off, len);
+        if (off == 0 && pendingLength == 0 && len >= pending.length) {
+            report(b, len);
+            return;
+        }
+        while (len > 0) {
+            int count = Math.min(len, pending.length - pendingLength);
+            System.arraycopy(b, off, pending, pendingLength, count);
+            pendingLength += count;
+            off += count;
+            len -= count;
+            if (pendingLength == pending.length) {
+                report(pending, pendingLength);
+            }
+        }
+        if (pendingLength > 0 && System.nanoTime() - lastReport >= intervalNanos) {
+            report(pending, pendingLength);
         }
     }
+
+    /**
+     * Reports the bytes written so far, which {@link #close()} does as well
+     */
+    @Override
+    public void flush() throws IOException {
+        if (pendingLength > 0) {
+            report(pending, pendingLength);
+        }
+        out.flush();
+    }
+
+    private void report(byte[] buffer, int length) {
+        pendingLength = 0;
+        lastReport = System.nanoTime();
+        event.setTimestamp(System.currentTimeMillis());
+        transferEventSupport.fireTransferProgress(event, buffer, length);
+    }
 }
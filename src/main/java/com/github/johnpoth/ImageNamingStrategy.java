@@ -45,5 +45,16 @@ public enum ImageNamingStrategy {
      *
      *  org/apache/ant/ant/1.10.11/ant-1.10.11.jar
      * */
-    None
+    None,
+
+    /** Module packs every file of a directory e.g a module's JAR, POM, checksums and signatures into a single image with a layer per
+     *  file, named after the directory the same way Default does e.g:
+     *
+     *  org/apache/ant/ant/1.10.11/ant-1.10.11.jar and org/apache/ant/ant/1.10.11/ant-1.10.11.pom will be layers of the image repository:
+     *
+     *  maven_org_apache_ant_ant_1_10_11
+     *
+     *  Layers are told apart by their title annotation. The manifest is pushed along with every file, so a file is in the registry as soon as its put returns
+     * */
+    Module
 }
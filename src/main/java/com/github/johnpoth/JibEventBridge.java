@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import com.google.cloud.tools.jib.api.LogEvent;
+import com.google.cloud.tools.jib.event.EventHandlers;
+import com.google.cloud.tools.jib.event.events.TimerEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns the events Jib dispatches into log lines and timings, instead of dropping them.
+ *
+ * Log events, e.g a registry client failing over to HTTP, are logged under Jib's own logger name. Timer events are put
+ * together into a tree per operation, e.g pushing a blob and the requests it took, which is logged at debug level
+ * once the operation is over and recorded to the trace if there is one.
+ *
+ * Progress events are deliberately left out: Jib only dispatches them from the build steps of its containerizer, which
+ * the wagon doesn't use, never from the registry client. The bytes transferred are measured by {@link TransferProgress}
+ * instead.
+ */
+public class JibEventBridge {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JibEventBridge.class);
+    private static final Logger JIB_LOG = LoggerFactory.getLogger("com.google.cloud.tools.jib");
+
+    private final ChromeTrace trace;
+    private final EventHandlers eventHandlers;
+    // timers running, Jib's timers don't override equals so they're looked up by identity
+    private final Map<TimerEvent.Timer, Span> timers = new ConcurrentHashMap<>();
+
+    /**
+     * @param trace where the timings are recorded as well, can be null
+     */
+    public JibEventBridge(ChromeTrace trace) {
+        this.trace = trace;
+        this.eventHandlers = EventHandlers.builder()
+                .add(LogEvent.class, this::log)
+                .add(TimerEvent.class, this::time)
+                .build();
+    }
+
+    public EventHandlers getEventHandlers() {
+        return eventHandlers;
+    }
+
+    public void log(LogEvent event) {
+        switch (event.getLevel()) {
+            case ERROR:
+                JIB_LOG.error(event.getMessage());
+                break;
+            case WARN:
+                JIB_LOG.warn(event.getMessage());
+                break;
+            case LIFECYCLE:
+            case INFO:
+                JIB_LOG.info(event.getMessage());
+                break;
+            default:
+                JIB_LOG.debug(event.getMessage());
+        }
+    }
+
+    private void time(TimerEvent event) {
+        long now = System.nanoTime();
+        switch (event.getState()) {
+            case START:
+                timers.put(event.getTimer(), new Span(event.getDescription(), now));
+                break;
+            case LAP:
+                Span lapped = timers.get(event.getTimer());
+                if (lapped != null) {
+                    lapped.lap(now - event.getDuration().toNanos(), now, event.getDescription());
+                }
+                break;
+            case FINISHED:
+                Span span = timers.remove(event.getTimer());
+                if (span == null) {
+                    return;
+                }
+                // the last lap ends with the timer, it's only a lap if there were others
+                if (span.lapDescription != null) {
+                    span.lap(now - event.getDuration().toNanos(), now, null);
+                }
+                span.end = now;
+                Span parent = event.getTimer().getParent().map(timers::get).orElse(null);
+                if (parent != null) {
+                    parent.add(span);
+                } else {
+                    finished(span);
+                }
+                break;
+            default:
+        }
+    }
+
+    private void finished(Span span) {
+        if (LOG.isDebugEnabled()) {
+            StringBuilder tree = new StringBuilder();
+            span.appendTo(tree, "");
+            LOG.debug("Jib timings:{}", tree);
+        }
+        if (trace != null) {
+            span.recordTo(trace);
+        }
+    }
+
+    private static class Span {
+
+        private final String description;
+        private final long start;
+        private long end;
+        private final List<Span> children = new ArrayList<>();
+        // what the running lap is about, null until the first lap is over
+        private String lapDescription;
+
+        private Span(String description, long start) {
+            this.description = description;
+            this.start = start;
+        }
+
+        /**
+         * Jib names a lap when it's over after what comes next e.g "PUT" once the PATCH request is done, the lap that's
+         * over is named after the previous one or the timer itself
+         *
+         * @param next what the next lap is about, null if there's none
+         */
+        private void lap(long start, long end, String next) {
+            Span lap = new Span(lapDescription != null ? lapDescription : description, start);
+            lap.end = end;
+            add(lap);
+            lapDescription = next;
+        }
+
+        private synchronized void add(Span child) {
+            children.add(child);
+        }
+
+        private synchronized void appendTo(StringBuilder tree, String indent) {
+            tree.append(System.lineSeparator()).append(indent).append(description).append(' ')
+                    .append(TimeUnit.NANOSECONDS.toMillis(end - start)).append(" ms");
+            for (Span child : children) {
+                child.appendTo(tree, indent + "  ");
+            }
+        }
+
+        private synchronized void recordTo(ChromeTrace trace) {
+            trace.complete(description, "jib", start, end);
+            for (Span child : children) {
+                child.recordTo(trace);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which blobs are known to be present in which image repository of a registry.
+ *
+ * Each registry gets its own append-only file in the cache directory with one {@code <repository> <digest>} line per
+ * blob, lines starting with {@code !} forget a blob again. The files are shared by every build on the machine: entries
+ * are only hints, whatever relies on them has to cope with the registry having lost the blob since. Appends and
+ * compaction take a lock on a file next to it, so that a compaction doesn't lose entries appended by other builds.
+ */
+public class KnownBlobIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KnownBlobIndex.class);
+
+    // compacts the file once it holds that many entries, keeping the most recent half
+    private static final int MAX_ENTRIES = 100_000;
+
+    private final Path directory;
+    private final ConcurrentMap<String, RegistryIndex> registries = new ConcurrentHashMap<>();
+
+    public KnownBlobIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    public boolean contains(String registry, String repository, String digest) {
+        return getRegistryIndex(registry).contains(repository, digest);
+    }
+
+    /**
+     * @return the repositories of the registry known to hold the given blob, most recent last
+     */
+    public List<String> getRepositories(String registry, String digest) {
+        return getRegistryIndex(registry).getRepositories(digest);
+    }
+
+    public void add(String registry, String repository, String digest) {
+        getRegistryIndex(registry).add(repository, digest);
+    }
+
+    public void remove(String registry, String repository, String digest) {
+        getRegistryIndex(registry).remove(repository, digest);
+    }
+
+    private RegistryIndex getRegistryIndex(String registry) {
+        return registries.computeIfAbsent(registry, r -> new RegistryIndex(directory.resolve(r.replaceAll("[^A-Za-z0-9._-]", "_") + ".idx")));
+    }
+
+    private static class RegistryIndex {
+
+        private final Path file;
+        private final Path lockFile;
+        // digest -> repositories, in insertion order so that the most recent entries survive compaction
+        private final Map<String, Set<String>> repositoriesByDigest = new LinkedHashMap<>();
+        private boolean loaded;
+
+        private RegistryIndex(Path file) {
+            this.file = file;
+            this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        }
+
+        private synchronized boolean contains(String repository, String digest) {
+            load();
+            Set<String> repositories = repositoriesByDigest.get(digest);
+            return repositories != null && repositories.contains(repository);
+        }
+
+        private synchronized List<String> getRepositories(String digest) {
+            load();
+            Set<String> repositories = repositoriesByDigest.get(digest);
+            return repositories == null ? Collections.emptyList() : new ArrayList<>(repositories);
+        }
+
+        private synchronized void add(String repository, String digest) {
+            load();
+            if (repositoriesByDigest.computeIfAbsent(digest, d -> new LinkedHashSet<>()).add(repository)) {
+                append(repository + " " + digest);
+            }
+        }
+
+        private synchronized void remove(String repository, String digest) {
+            load();
+            Set<String> repositories = repositoriesByDigest.get(digest);
+            if (repositories != null && repositories.remove(repository)) {
+                if (repositories.isEmpty()) {
+                    repositoriesByDigest.remove(digest);
+                }
+                append("!" + repository + " " + digest);
+            }
+        }
+
+        private void load() {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            try {
+                if (read() > MAX_ENTRIES) {
+                    compact();
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not read known blobs from [{}]", file, e);
+            }
+        }
+
+        /**
+         * @return how many entries the file holds
+         */
+        private int read() throws IOException {
+            if (!Files.exists(file)) {
+                return 0;
+            }
+            int entries = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int separator = line.indexOf(' ');
+                if (separator <= 0 || separator == line.length() - 1) {
+                    // e.g a line that was being written by another build
+                    continue;
+                }
+                String digest = line.substring(separator + 1);
+                if (line.charAt(0) == '!') {
+                    Set<String> repositories = repositoriesByDigest.get(digest);
+                    if (repositories != null) {
+                        repositories.remove(line.substring(1, separator));
+                    }
+                } else {
+                    // re-inserting moves the digest to the end so that it is considered recent
+                    Set<String> repositories = repositoriesByDigest.remove(digest);
+                    if (repositories == null) {
+                        repositories = new LinkedHashSet<>();
+                    }
+                    repositories.add(line.substring(0, separator));
+                    repositoriesByDigest.put(digest, repositories);
+                }
+                entries++;
+            }
+            repositoriesByDigest.values().removeIf(Set::isEmpty);
+            return entries;
+        }
+
+        private void compact() {
+            try {
+                locked(() -> {
+                    // other builds may have appended entries since the file was read
+                    repositoriesByDigest.clear();
+                    read();
+                    List<String> digests = new ArrayList<>(repositoriesByDigest.keySet());
+                    repositoriesByDigest.keySet().retainAll(new HashSet<>(digests.subList(digests.size() / 2, digests.size())));
+                    Path compacted = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                    try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                        for (Map.Entry<String, Set<String>> entry : repositoriesByDigest.entrySet()) {
+                            for (String repository : entry.getValue()) {
+                                writer.write(repository + " " + entry.getKey());
+                                writer.newLine();
+                            }
+                        }
+                    }
+                    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                });
+                LOG.debug("Compacted known blobs in [{}]", file);
+            } catch (IOException e) {
+                LOG.debug("Could not compact known blobs in [{}]", file, e);
+            }
+        }
+
+        private void append(String line) {
+            try {
+                Files.createDirectories(file.getParent());
+                // a single write of a short line in append mode doesn't interleave with other builds writing to the file
+                locked(() -> {
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+                    }
+                });
+            } catch (IOException e) {
+                LOG.debug("Could not record known blob in [{}]", file, e);
+            }
+        }
+
+        /**
+         * Runs the action holding the lock of the file, which keeps other builds from compacting it meanwhile
+         */
+        private void locked(FileAction action) throws IOException {
+            // FileChannel locks are held on behalf of the whole JVM, other wagons of this JVM have to be kept out separately
+            synchronized (KnownBlobIndex.class) {
+                try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = channel.lock();
+                    try {
+                        action.run();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface FileAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.Blobs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a compressed layer while it is being built.
+ *
+ * Small layers stay in memory, anything bigger than the configured limit is spilled to a temporary file so heap usage
+ * doesn't grow with the size of the artifact. Either way the resulting {@link Blob} can be written more than once
+ * which keeps Jib's retries working.
+ */
+public class LayerBuffer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LayerBuffer.class);
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final long inMemoryLimit;
+    private MemoryOutputStream memory = new MemoryOutputStream();
+    private final SpillingOutputStream outputStream = new SpillingOutputStream();
+    private Path file;
+    private long size;
+
+    public LayerBuffer(long inMemoryLimit) {
+        this.inMemoryLimit = inMemoryLimit;
+    }
+
+    /**
+     * @return the stream the layer should be written to. Closing it doesn't discard the data, use {@link #close()} for that
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    public Blob toBlob() throws IOException {
+        outputStream.flush();
+        if (file != null) {
+            return Blobs.from(file);
+        }
+        return new ByteArrayOutputStreamBlob(memory);
+    }
+
+    /**
+     * Reads the layer from the given offset on, for uploads that resume where they left off
+     */
+    public InputStream newInputStream(long offset) throws IOException {
+        outputStream.flush();
+        if (file != null) {
+            SeekableByteChannel channel = Files.newByteChannel(file);
+            channel.position(offset);
+            return Channels.newInputStream(channel);
+        }
+        return memory.newInputStream((int) offset);
+    }
+
+    @Override
+    public void close() {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing layer buffer", e);
+        }
+        memory = null;
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Could not delete temporary layer file [{}]", file, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the buffered bytes without copying them like {@link ByteArrayOutputStream#toByteArray()} does
+     */
+    private static class MemoryOutputStream extends ByteArrayOutputStream {
+
+        private synchronized InputStream newInputStream(int offset) {
+            return new ByteArrayInputStream(buf, offset, count - offset);
+        }
+    }
+
+    private class SpillingOutputStream extends OutputStream {
+
+        private OutputStream current = memory;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            spillIfNeeded(1);
+            current.write(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            spillIfNeeded(len);
+            current.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            current.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                current.close();
+            }
+        }
+
+        private void spillIfNeeded(int len) throws IOException {
+            if (file != null || size + len <= inMemoryLimit) {
+                return;
+            }
+            file = Files.createTempFile("wagon-docker-registry-", ".layer");
+            LOG.debug("Layer exceeds {} bytes, spilling to [{}]", inMemoryLimit, file);
+            OutputStream fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file), FILE_BUFFER_SIZE);
+            memory.writeTo(fileOutputStream);
+            memory = null;
+            current = fileOutputStream;
+        }
+    }
+}
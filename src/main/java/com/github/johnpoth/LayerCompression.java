@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.cloud.tools.jib.api.buildplan.ImageFormat;
+import com.google.cloud.tools.jib.image.json.BuildableManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+
+public enum LayerCompression {
+
+    /** Layers are plain TARs. Most artifacts e.g JARs are already compressed, compressing them again is mostly wasted CPU */
+    None("application/vnd.docker.image.rootfs.diff.tar", "application/vnd.oci.image.layer.v1.tar"),
+
+    /** Layers are gzipped TARs, which every client supports */
+    Gzip("application/vnd.docker.image.rootfs.diff.tar.gzip", "application/vnd.oci.image.layer.v1.tar+gzip"),
+
+    /**
+     * Layers are zstd compressed TARs: faster than gzip on both ends for a similar ratio, but older clients don't support
+     * it. Only OCI images can have zstd layers, and zstd-jni has to be on the classpath
+     */
+    Zstd(null, "application/vnd.oci.image.layer.v1.tar+zstd");
+
+    private final String dockerMediaType;
+    private final String ociMediaType;
+
+    LayerCompression(String dockerMediaType, String ociMediaType) {
+        this.dockerMediaType = dockerMediaType;
+        this.ociMediaType = ociMediaType;
+    }
+
+    /**
+     * @return the media type of the layers in images of the given format, the OCI one if the format has none
+     */
+    public String getMediaType(ImageFormat imageFormat) {
+        return imageFormat == ImageFormat.OCI || dockerMediaType == null ? ociMediaType : dockerMediaType;
+    }
+
+    /**
+     * @return false if images of the given format can't have layers compressed this way
+     */
+    public boolean supports(ImageFormat imageFormat) {
+        return imageFormat == ImageFormat.OCI || dockerMediaType != null;
+    }
+
+    /**
+     * @return false if a library the compression needs is missing
+     */
+    public boolean isAvailable() {
+        return this != Zstd || ZstdUtils.isZstdCompressionAvailable();
+    }
+
+    /**
+     * @param level the compression level, negative for the codec's default
+     */
+    public OutputStream compress(OutputStream out, int level) throws IOException {
+        switch (this) {
+            case None:
+                return out;
+            case Zstd:
+                checkAvailable();
+                return level < 0 ? new ZstdCompressorOutputStream(out) : new ZstdCompressorOutputStream(out, level);
+            default:
+                GzipParameters parameters = new GzipParameters();
+                if (level >= 0) {
+                    parameters.setCompressionLevel(level);
+                }
+                return new GzipCompressorOutputStream(out, parameters);
+        }
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case None:
+                return in;
+            case Zstd:
+                checkAvailable();
+                return new ZstdCompressorInputStream(in);
+            default:
+                return new GzipCompressorInputStream(in);
+        }
+    }
+
+    /**
+     * @return the compression of the given layer
+     */
+    public static LayerCompression of(BuildableManifestTemplate.ContentDescriptorTemplate layer) throws IOException {
+        // Jib doesn't expose the media type of descriptors
+        return fromMediaType(JsonTemplateMapper.readJson(JsonTemplateMapper.toUtf8String(layer), MediaTypeTemplate.class).mediaType);
+    }
+
+    /**
+     * @return the compression of a layer given its media type
+     * @throws IOException if the media type isn't one of a layer the wagon can read
+     */
+    public static LayerCompression fromMediaType(String mediaType) throws IOException {
+        for (LayerCompression compression : values()) {
+            if (compression.ociMediaType.equals(mediaType) || (mediaType != null && mediaType.equals(compression.dockerMediaType))) {
+                return compression;
+            }
+        }
+        throw new IOException("Unsupported layer media type " + mediaType);
+    }
+
+    private void checkAvailable() throws IOException {
+        if (!isAvailable()) {
+            throw new IOException(this + " layers need com.github.luben:zstd-jni on the classpath");
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class MediaTypeTemplate implements JsonTemplate {
+
+        private String mediaType;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers what we learnt about a tagged manifest: its digest, the digests of the blobs it references and when the
+ * artifact was created.
+ *
+ * Entries are stored as one properties file per tag so that they survive across builds. They are only valid as long
+ * as the tag still points to the same manifest digest, which callers have to check with the registry first.
+ */
+public class ManifestMetadataCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ManifestMetadataCache.class);
+
+    private final Path directory;
+
+    public ManifestMetadataCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return null if nothing is known about the tag
+     */
+    public Metadata get(String registry, String repository, String tag) {
+        Path file = getPath(registry, repository, tag);
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            properties.load(inputStream);
+            return new Metadata(DescriptorDigest.fromDigest(properties.getProperty("manifestDigest")),
+                    DescriptorDigest.fromDigest(properties.getProperty("configDigest")),
+                    DescriptorDigest.fromDigest(properties.getProperty("layerDigest")),
+                    properties.getProperty("layerMediaType"),
+                    Long.parseLong(properties.getProperty("layerSize", "-1")),
+                    Long.parseLong(properties.getProperty("created")));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (Exception e) {
+            LOG.debug("Ignoring unreadable manifest metadata [{}]", file, e);
+            return null;
+        }
+    }
+
+    public void put(String registry, String repository, String tag, Metadata metadata) {
+        Path file = getPath(registry, repository, tag);
+        Properties properties = new Properties();
+        properties.setProperty("manifestDigest", metadata.manifestDigest.toString());
+        properties.setProperty("configDigest", metadata.configDigest.toString());
+        properties.setProperty("layerDigest", metadata.layerDigest.toString());
+        if (metadata.layerMediaType != null) {
+            properties.setProperty("layerMediaType", metadata.layerMediaType);
+        }
+        properties.setProperty("layerSize", String.valueOf(metadata.layerSize));
+        properties.setProperty("created", String.valueOf(metadata.created));
+        try {
+            Files.createDirectories(file.getParent());
+            // readers from other builds never see a half written file
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                properties.store(outputStream, null);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.debug("Could not store manifest metadata [{}]", file, e);
+        }
+    }
+
+    public void remove(String registry, String repository, String tag) {
+        try {
+            Files.deleteIfExists(getPath(registry, repository, tag));
+        } catch (IOException e) {
+            LOG.debug("Could not remove manifest metadata of [{}/{}:{}]", registry, repository, tag, e);
+        }
+    }
+
+    private Path getPath(String registry, String repository, String tag) {
+        // image references have already been validated, only the registry's port separator needs escaping
+        return directory.resolve(registry.replace(':', '_')).resolve(repository).resolve(tag + ".properties");
+    }
+
+    public static class Metadata {
+
+        private final DescriptorDigest manifestDigest;
+        private final DescriptorDigest configDigest;
+        private final DescriptorDigest layerDigest;
+        private final String layerMediaType;
+        private final long layerSize;
+        private final long created;
+
+        /**
+         * @param layerMediaType can be null for entries cached by older versions of the wagon
+         * @param layerSize -1 for entries cached by older versions of the wagon
+         * @param created when the artifact was created in milliseconds since the epoch, -1 if unknown
+         */
+        public Metadata(DescriptorDigest manifestDigest, DescriptorDigest configDigest, DescriptorDigest layerDigest, String layerMediaType,
+                        long layerSize, long created) {
+            this.manifestDigest = manifestDigest;
+            this.configDigest = configDigest;
+            this.layerDigest = layerDigest;
+            this.layerMediaType = layerMediaType;
+            this.layerSize = layerSize;
+            this.created = created;
+        }
+
+        public DescriptorDigest getManifestDigest() {
+            return manifestDigest;
+        }
+
+        public DescriptorDigest getConfigDigest() {
+            return configDigest;
+        }
+
+        public DescriptorDigest getLayerDigest() {
+            return layerDigest;
+        }
+
+        public String getLayerMediaType() {
+            return layerMediaType;
+        }
+
+        public long getLayerSize() {
+            return layerSize;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.api.buildplan.ImageFormat;
+import com.google.cloud.tools.jib.image.json.BuildableManifestTemplate;
+import com.google.cloud.tools.jib.image.json.ContainerConfigurationTemplate;
+
+/**
+ * Image holding every file of a directory e.g a module's JAR, POM, checksums and signatures, see
+ * {@link ImageNamingStrategy#Module}.
+ *
+ * Files are layers identified by their title annotation, putting a file that's already in the image replaces its
+ * layer. Every put pushes the manifest again, starting from the image in memory so that the files put earlier in the
+ * session are kept. Methods are synchronized: files of the same image may be put from several threads. Version indexes
+ * are maintained the same way, with a layer per version, and pushed once Maven moves on to another directory.
+ */
+public class ModuleImage {
+
+    private final String resourceName;
+    private final String tag;
+    private final Map<String, Layer> layers = new LinkedHashMap<>();
+    private boolean loaded;
+    // bumped on every change, tells whether the image changed since it was last pushed
+    private int version;
+    private int pushedVersion;
+
+    /**
+     * @param resourceName any resource of the image, used to find out its reference
+     */
+    public ModuleImage(String resourceName, String tag) {
+        this.resourceName = resourceName;
+        this.tag = tag;
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized boolean isPushed() {
+        return pushedVersion == version;
+    }
+
+    /**
+     * Starts from what's in the registry, files put before we got here are kept. Layers without a title can't be
+     * addressed and are dropped.
+     *
+     * @param manifest null if the image doesn't exist yet
+     * @param configuration null if the image doesn't exist yet
+     */
+    public synchronized void load(BuildableManifestTemplate manifest, ContainerConfigurationTemplate configuration) throws IOException {
+        if (manifest != null) {
+            List<? extends BuildableManifestTemplate.ContentDescriptorTemplate> existing = manifest.getLayers();
+            for (int i = 0; i < existing.size(); i++) {
+                BuildableManifestTemplate.ContentDescriptorTemplate layer = existing.get(i);
+                Map<String, String> annotations = layer.getAnnotations();
+                String title = annotations == null ? null : annotations.get(ArtifactManifestTemplate.ANNOTATION_TITLE);
+                if (title != null && i < configuration.getLayerCount()) {
+                    layers.putIfAbsent(title, new Layer(LayerCompression.of(layer), layer.getSize(), layer.getDigest(),
+                            configuration.getLayerDiffId(i), annotations));
+                }
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * Marks the image as changed ahead of a put running in the background, so that it's pushed along with images
+     * changed so far even if the put didn't get to change it yet
+     */
+    public synchronized void touch() {
+        version++;
+    }
+
+    public synchronized void put(Layer layer) {
+        layers.put(layer.getTitle(), layer);
+        version++;
+    }
+
+    /**
+     * @return the image as it should be pushed, null if it didn't change since it was last pushed or we don't know what's
+     * in the registry
+     */
+    public synchronized Snapshot snapshot(ImageFormat imageFormat) {
+        if (isPushed() || !loaded) {
+            return null;
+        }
+        ContainerConfigurationTemplate configuration = new ContainerConfigurationTemplate();
+        ArtifactManifestTemplate manifest = new ArtifactManifestTemplate(imageFormat);
+        String created = null;
+        for (Layer layer : layers.values()) {
+            configuration.addLayerDiffId(layer.diffId);
+            manifest.addLayer(layer.compression, layer.size, layer.digest, layer.annotations);
+            String layerCreated = layer.annotations.get(ArtifactManifestTemplate.ANNOTATION_CREATED);
+            // ISO-8601 instants sort chronologically
+            if (layerCreated != null && (created == null || layerCreated.compareTo(created) > 0)) {
+                created = layerCreated;
+            }
+        }
+        if (created != null) {
+            configuration.setCreated(created);
+        }
+        return new Snapshot(manifest, configuration, version);
+    }
+
+    public synchronized void pushed(Snapshot snapshot) {
+        pushedVersion = Math.max(pushedVersion, snapshot.version);
+    }
+
+    public synchronized List<String> getTitles() {
+        return new ArrayList<>(layers.keySet());
+    }
+
+    /**
+     * @return null if there's no layer with the given title
+     */
+    public synchronized Layer getLayer(String title) {
+        return layers.get(title);
+    }
+
+    public static class Layer {
+
+        private final LayerCompression compression;
+        private final long size;
+        private final DescriptorDigest digest;
+        private final DescriptorDigest diffId;
+        private final Map<String, String> annotations;
+
+        /**
+         * @param annotations must hold the layer's title
+         */
+        public Layer(LayerCompression compression, long size, DescriptorDigest digest, DescriptorDigest diffId, Map<String, String> annotations) {
+            this.compression = compression;
+            this.size = size;
+            this.digest = digest;
+            this.diffId = diffId;
+            this.annotations = annotations;
+        }
+
+        public String getTitle() {
+            return annotations.get(ArtifactManifestTemplate.ANNOTATION_TITLE);
+        }
+
+        public Map<String, String> getAnnotations() {
+            return annotations;
+        }
+    }
+
+    public static class Snapshot {
+
+        private final ArtifactManifestTemplate manifest;
+        private final ContainerConfigurationTemplate configuration;
+        private final int version;
+
+        private Snapshot(ArtifactManifestTemplate manifest, ContainerConfigurationTemplate configuration, int version) {
+            this.manifest = manifest;
+            this.configuration = configuration;
+            this.version = version;
+        }
+
+        public ArtifactManifestTemplate getManifest() {
+            return manifest;
+        }
+
+        public ContainerConfigurationTemplate getConfiguration() {
+            return configuration;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing blocks of data concurrently, the way pigz does.
+ *
+ * The data is cut into fixed size blocks which are deflated independently on a {@link ForkJoinPool}, each block using
+ * the end of the previous one as its dictionary so that the compression ratio stays close to a sequential one. Blocks
+ * are sync flushed and written in order, which results in a regular single member gzip stream. The output only depends
+ * on the data, the level and the block size, not on the number of threads.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private final OutputStream out;
+    private final int level;
+    private final int blockSize;
+    private final ForkJoinPool pool;
+    private final int maxBlocksInFlight;
+    private final Deque<CompletableFuture<byte[]>> blocksInFlight = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private long size;
+    private boolean closed;
+
+    /**
+     * @param level the compression level, negative for the default
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, ForkJoinPool pool) throws IOException {
+        this(out, level, DEFAULT_BLOCK_SIZE, pool);
+    }
+
+    /**
+     * @param blockSize must be at least 32KB, the size of the deflate dictionary
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, int blockSize, ForkJoinPool pool) throws IOException {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes");
+        }
+        this.out = out;
+        this.level = level < 0 ? Deflater.DEFAULT_COMPRESSION : level;
+        this.blockSize = blockSize;
+        this.pool = pool;
+        // keeps every thread busy while bounding memory usage
+        this.maxBlocksInFlight = 2 * pool.getParallelism();
+        this.block = new byte[blockSize];
+        writeHeader();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        crc.update(b, off, len);
+        size += len;
+        while (len > 0) {
+            int count = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+            if (blockLength == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for the blocks submitted so far to be compressed and written. Data that doesn't make up a full block yet
+     * stays buffered.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!blocksInFlight.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            submit(true);
+            flush();
+            writeTrailer();
+        } finally {
+            closed = true;
+            blocksInFlight.forEach(future -> future.cancel(true));
+            blocksInFlight.clear();
+            out.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        byte[] data = block;
+        int length = blockLength;
+        byte[] dictionary = previousBlock;
+        blocksInFlight.add(CompletableFuture.supplyAsync(() -> deflate(data, length, dictionary, level, last), pool));
+        previousBlock = data;
+        block = new byte[blockSize];
+        blockLength = 0;
+        if (blocksInFlight.size() >= maxBlocksInFlight) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            out.write(blocksInFlight.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block", e.getCause());
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int length, byte[] dictionary, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // a sync flush ends the block on a byte boundary without ending the deflate stream
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        // magic, deflate, no flags, no modification time, no extra flags, unknown OS
+        out.write(new byte[] {(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    }
+
+    private void writeTrailer() throws IOException {
+        byte[] trailer = new byte[8];
+        writeInt((int) crc.getValue(), trailer, 0);
+        writeInt((int) size, trailer, 4);
+        out.write(trailer);
+    }
+
+    private static void writeInt(int value, byte[] buffer, int offset) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import com.google.cloud.tools.jib.hash.Digests;
+import com.google.cloud.tools.jib.http.Authorization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads large blobs with several concurrent Range requests.
+ *
+ * Registries often serve blobs from a CDN where a single connection is far from using the available bandwidth. Each
+ * range is written at its offset in a file sized for the whole blob, whose digest is verified once every range is in.
+ * Registries that ignore the Range header send the whole blob in response to the first request, which is then
+ * downloaded sequentially.
+ *
+ * Each range goes through the {@link RetryPolicy}, holding a permit of the registry's throttle for as long as its
+ * connection is in use. A range the registry turns down or whose connection drops is fetched again as a whole.
+ */
+public class RangedBlobDownloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangedBlobDownloader.class);
+
+    // smaller ranges aren't worth a request of their own
+    private static final long MIN_RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RegistryHttpClient http;
+    private final RetryPolicy retries;
+    private final ExecutorService executor;
+    private final int connections;
+
+    public RangedBlobDownloader(RegistryHttpClient http, RetryPolicy retries, ExecutorService executor, int connections) {
+        this.http = http;
+        this.retries = retries;
+        this.executor = executor;
+        this.connections = connections;
+    }
+
+    /**
+     * @return whether a blob of the given size would be downloaded in more than one range
+     */
+    public boolean isRanged(long size) {
+        return getRangeCount(size) > 1;
+    }
+
+    /**
+     * Downloads a blob to the given file, which is overwritten
+     *
+     * @param authorization can be null if the registry doesn't need any
+     * @throws IOException if the download failed or its digest doesn't match
+     */
+    public void download(String registry, String repository, DescriptorDigest digest, long size, Path file, Authorization authorization)
+            throws IOException {
+        int rangeCount = getRangeCount(size);
+        long rangeSize = (size + rangeCount - 1) / rangeCount;
+        String path = "/v2/" + repository + "/blobs/" + digest;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<CompletableFuture<Void>> ranges = new ArrayList<>();
+            try {
+                boolean ranged = fetchRange(registry, path, digest, 0, rangeSize, size, channel, authorization, () -> {
+                    // the other ranges come in along with the first one, unless it's being fetched again
+                    if (!ranges.isEmpty()) {
+                        return;
+                    }
+                    // allocates the whole file up front so that ranges don't have to extend it
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                    for (long offset = rangeSize; offset < size; offset += rangeSize) {
+                        long start = offset;
+                        long length = Math.min(rangeSize, size - start);
+                        ranges.add(CompletableFuture.runAsync(() -> {
+                            try {
+                                if (!fetchRange(registry, path, digest, start, length, size, channel, authorization, null)) {
+                                    throw new IOException("Registry ignored the range of [" + digest + "] starting at " + start);
+                                }
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        }, executor));
+                    }
+                });
+                if (!ranged) {
+                    LOG.debug("Registry [{}] doesn't support ranges, downloaded [{}] sequentially", registry, digest);
+                }
+            } finally {
+                // doesn't leave ranges writing to the file behind our back
+                CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null).join();
+            }
+            for (CompletableFuture<Void> range : ranges) {
+                awaitRange(range);
+            }
+        }
+        verify(file, digest, size);
+    }
+
+    private int getRangeCount(long size) {
+        return (int) Math.max(1, Math.min(connections, size / MIN_RANGE_SIZE));
+    }
+
+    /**
+     * Writes a range of the blob at its offset in the file, fetching it again if the registry turns it down or the
+     * connection drops
+     *
+     * @param size of the whole blob, which is written instead of the range if the registry ignores it
+     * @param onRanged called once the registry answered with the range, before its content is written. Null for ranges
+     *                 past the first one: the whole blob isn't written in their place
+     * @return false if the registry ignored the range
+     */
+    private boolean fetchRange(String registry, String path, DescriptorDigest digest, long start, long length, long size,
+                               FileChannel channel, Authorization authorization, RangeListener onRanged) throws IOException {
+        for (int retry = 0; ; retry++) {
+            try {
+                return retries.callOnce(registry, () -> {
+                    HttpResponse response = getRange(registry, path, start, length, authorization);
+                    boolean ranged = response.getStatusCode() == 206;
+                    if (ranged && onRanged != null) {
+                        try {
+                            onRanged.ranged();
+                        } catch (IOException e) {
+                            response.disconnect();
+                            throw e;
+                        }
+                    } else if (!ranged && onRanged == null) {
+                        // doesn't read the whole blob to reuse the connection
+                        response.disconnect();
+                        return false;
+                    }
+                    write(response, channel, ranged ? start : 0, ranged ? length : size);
+                    return ranged;
+                });
+            } catch (IOException e) {
+                int statusCode = RetryPolicy.getStatusCode(e);
+                if ((statusCode >= 0 && !RetryPolicy.isRetryable(statusCode))
+                        || !retries.backOff(registry, "GET of blob " + digest + " at offset " + start, retry, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private HttpResponse getRange(String registry, String path, long start, long length, Authorization authorization)
+            throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setRange("bytes=" + start + "-" + (start + length - 1));
+        return http.execute(registry, "GET", path, null, headers, authorization);
+    }
+
+    private static void write(HttpResponse response, FileChannel channel, long position, long length) throws IOException {
+        long end = position + length;
+        InputStream in = response.getContent();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while (position < end && (count = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+            if (position < end) {
+                throw new IOException("Premature end of blob at offset " + position);
+            }
+            // releases the connection for the next request
+            in.close();
+        } catch (IOException e) {
+            // closing the stream would read whatever is left of the response first
+            response.disconnect();
+            throw e;
+        }
+    }
+
+    private static void verify(Path file, DescriptorDigest digest, long size) throws IOException {
+        BlobDescriptor descriptor;
+        try (InputStream in = Files.newInputStream(file)) {
+            descriptor = Digests.computeDigest(in);
+        }
+        if (!descriptor.getDigest().equals(digest) || descriptor.getSize() != size) {
+            throw new IOException("Downloaded blob doesn't match [" + digest + "], got [" + descriptor.getDigest() + "] of "
+                    + descriptor.getSize() + " bytes");
+        }
+    }
+
+    @FunctionalInterface
+    private interface RangeListener {
+        void ranged() throws IOException;
+    }
+
+    private static void awaitRange(CompletableFuture<Void> range) throws IOException {
+        try {
+            range.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
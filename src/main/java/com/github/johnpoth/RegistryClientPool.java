@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps authenticated {@link RegistryClient}s around for the duration of a connection.
+ *
+ * Building a client with credentials means going through the registry's token server, which Maven would otherwise
+ * do for every single file. Clients are keyed by image repository and dropped once the token they were given expires,
+ * see {@link BearerTokenCache}, as Jib only refreshes the tokens it got by itself. Clients without such a token, e.g
+ * using basic authentication, are kept for the whole connection.
+ */
+public class RegistryClientPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryClientPool.class);
+
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final ConcurrentMap<String, PooledClient> clients = new ConcurrentHashMap<>();
+
+    public RegistryClient get(String imageRepository, ClientFactory factory) throws TransferFailedException, ResourceDoesNotExistException {
+        PooledClient pooled = clients.get(imageRepository);
+        if (pooled != null && !pooled.isExpired()) {
+            return pooled.client;
+        }
+        // authenticating is the expensive part, no need to hold a lock while doing so
+        pooled = factory.create();
+        clients.put(imageRepository, pooled);
+        LOG.debug("Created registry client for [{}]", imageRepository);
+        return pooled.client;
+    }
+
+    /**
+     * Forgets the client of the given image repository e.g because its credentials were rejected
+     */
+    public void invalidate(String imageRepository) {
+        clients.remove(imageRepository);
+    }
+
+    public void clear() {
+        clients.clear();
+    }
+
+    public interface ClientFactory {
+
+        PooledClient create() throws TransferFailedException, ResourceDoesNotExistException;
+    }
+
+    public static class PooledClient {
+
+        private final RegistryClient client;
+        private final long expiresAt;
+
+        /**
+         * @param expiresAt when the client's authorization expires in milliseconds since the epoch, {@link #NEVER} if
+         *                  it doesn't
+         */
+        public PooledClient(RegistryClient client, long expiresAt) {
+            this.client = client;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+import com.google.cloud.tools.jib.global.JibSystemProperties;
+import com.google.cloud.tools.jib.http.Authorization;
+import com.google.cloud.tools.jib.json.JsonTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends requests Jib's client can't, e.g with Range or Content-Range headers.
+ *
+ * Registries are reached the same way Jib does: HTTPS, then HTTPS without certificate checks and then plain HTTP if
+ * insecure registries are allowed. What worked for a registry is remembered for the following requests. Proxies are
+ * those of the {@code http(s).proxyHost} system properties, authenticated with {@code http(s).proxyUser} and
+ * {@code http(s).proxyPassword} if they're set.
+ */
+public class RegistryHttpClient implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryHttpClient.class);
+
+    private static final int CATALOG_PAGE_SIZE = 1000;
+
+    private final boolean allowInsecureRegistries;
+    private final boolean sendAuthorizationOverHttp;
+    private final ApacheHttpTransport secureTransport = new ApacheHttpTransport(newHttpClientBuilder().build());
+    private ApacheHttpTransport insecureTransport;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public RegistryHttpClient(boolean allowInsecureRegistries, boolean sendAuthorizationOverHttp) {
+        this.allowInsecureRegistries = allowInsecureRegistries;
+        this.sendAuthorizationOverHttp = sendAuthorizationOverHttp;
+    }
+
+    /**
+     * Callers must {@link HttpResponse#ignore()} or read the response.
+     *
+     * @param url either a path on the registry e.g /v2/, or an absolute URL the registry sent back
+     * @param content can be null
+     * @param headers can be null
+     * @param authorization can be null if the registry doesn't need any
+     * @throws com.google.api.client.http.HttpResponseException if the registry answers with an error
+     */
+    public HttpResponse execute(String registry, String method, String url, HttpContent content, HttpHeaders headers,
+                                Authorization authorization) throws IOException {
+        if (!url.startsWith("/")) {
+            Endpoint endpoint = endpoints.get(registry);
+            return execute(endpoint != null ? endpoint : getCandidateEndpoints().get(0), method, new GenericUrl(url), content, headers,
+                    authorization);
+        }
+        Endpoint endpoint = endpoints.get(registry);
+        if (endpoint != null) {
+            return execute(endpoint, method, endpoint.resolve(registry, url), content, headers, authorization);
+        }
+        IOException failure = null;
+        for (Endpoint candidate : getCandidateEndpoints()) {
+            try {
+                HttpResponse response = execute(candidate, method, candidate.resolve(registry, url), content, headers, authorization);
+                endpoints.put(registry, candidate);
+                return response;
+            } catch (SSLException | ConnectException e) {
+                LOG.debug("Could not reach [{}] over {}", registry, candidate.scheme, e);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Lists the repositories of the registry starting with the given prefix, going through as many pages of the catalog
+     * as needed. Catalogs are sorted, listing starts right before the prefix and stops past it.
+     *
+     * @param authorization can be null if the registry doesn't need any
+     */
+    public List<String> listRepositories(String registry, String prefix, Authorization authorization) throws IOException {
+        List<String> repositories = new ArrayList<>();
+        String url = "/v2/_catalog?n=" + CATALOG_PAGE_SIZE + "&last=" + URLEncoder.encode(prefix, StandardCharsets.UTF_8.name());
+        while (url != null) {
+            HttpResponse response = execute(registry, "GET", url, null, null, authorization);
+            CatalogTemplate catalog;
+            try {
+                catalog = JsonTemplateMapper.readJson(response.getContent(), CatalogTemplate.class);
+            } finally {
+                response.ignore();
+            }
+            if (catalog.repositories == null) {
+                break;
+            }
+            for (String repository : catalog.repositories) {
+                if (repository.startsWith(prefix)) {
+                    repositories.add(repository);
+                } else if (repository.compareTo(prefix) > 0) {
+                    return repositories;
+                }
+            }
+            url = getNextPage(response);
+        }
+        return repositories;
+    }
+
+    @Override
+    public void close() throws IOException {
+        secureTransport.shutdown();
+        if (insecureTransport != null) {
+            insecureTransport.shutdown();
+        }
+    }
+
+    /**
+     * Registries answer with locations which may be relative
+     *
+     * @return the absolute location the response points to, the request's URL if there's none
+     */
+    public static String getLocation(HttpResponse response) throws IOException {
+        String requestUrl = response.getRequest().getUrl().build();
+        String location = response.getHeaders().getLocation();
+        return location == null ? requestUrl : new URL(new URL(requestUrl), location).toString();
+    }
+
+    /**
+     * @return the URL of the next page according to the Link header, null if this is the last page
+     */
+    private static String getNextPage(HttpResponse response) {
+        String link = response.getHeaders().getFirstHeaderStringValue("Link");
+        if (link == null || !link.contains("rel=\"next\"")) {
+            return null;
+        }
+        int start = link.indexOf('<');
+        int end = link.indexOf('>', start);
+        return start < 0 || end < 0 ? null : link.substring(start + 1, end);
+    }
+
+    private HttpResponse execute(Endpoint endpoint, String method, GenericUrl url, HttpContent content, HttpHeaders headers,
+                                 Authorization authorization) throws IOException {
+        HttpRequest request = endpoint.requestFactory.buildRequest(method, url, content);
+        request.setConnectTimeout(JibSystemProperties.getHttpTimeout());
+        request.setReadTimeout(JibSystemProperties.getHttpTimeout());
+        if (headers != null) {
+            request.setHeaders(headers);
+        }
+        // blobs are compressed already, and their digests are computed on what the registry stores
+        request.getHeaders().setAcceptEncoding(null);
+        request.setResponseReturnRawInputStream(true);
+        if (authorization != null && ("https".equals(url.getScheme()) || sendAuthorizationOverHttp)) {
+            request.getHeaders().setAuthorization(authorization.getScheme() + " " + authorization.getToken());
+        }
+        return request.execute();
+    }
+
+    private List<Endpoint> getCandidateEndpoints() throws IOException {
+        List<Endpoint> candidates = new ArrayList<>();
+        candidates.add(new Endpoint("https", secureTransport.createRequestFactory()));
+        if (allowInsecureRegistries) {
+            candidates.add(new Endpoint("https", getInsecureTransport().createRequestFactory()));
+            candidates.add(new Endpoint("http", secureTransport.createRequestFactory()));
+        }
+        return candidates;
+    }
+
+    private synchronized ApacheHttpTransport getInsecureTransport() throws IOException {
+        if (insecureTransport == null) {
+            try {
+                insecureTransport = new ApacheHttpTransport(newHttpClientBuilder()
+                        .setSSLSocketFactory(new SSLConnectionSocketFactory(SslUtils.trustAllSSLContext(), NoopHostnameVerifier.INSTANCE))
+                        .build());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not create insecure HTTP transport", e);
+            }
+        }
+        return insecureTransport;
+    }
+
+    private static HttpClientBuilder newHttpClientBuilder() {
+        HttpClientBuilder builder = ApacheHttpTransport.newDefaultHttpClientBuilder();
+        CredentialsProvider proxyCredentials = getProxyCredentials();
+        if (proxyCredentials != null) {
+            builder.setDefaultCredentialsProvider(proxyCredentials);
+        }
+        return builder;
+    }
+
+    /**
+     * The wagon sets these properties from Maven's proxy settings
+     *
+     * @return the credentials of the proxies set in system properties, null if none has any
+     */
+    static CredentialsProvider getProxyCredentials() {
+        CredentialsProvider credentials = null;
+        for (String protocol : new String[] {"https", "http"}) {
+            String host = System.getProperty(protocol + ".proxyHost");
+            String user = System.getProperty(protocol + ".proxyUser");
+            String password = System.getProperty(protocol + ".proxyPassword");
+            if (host == null || user == null || password == null) {
+                continue;
+            }
+            String port = System.getProperty(protocol + ".proxyPort", "https".equals(protocol) ? "443" : "80");
+            if (credentials == null) {
+                credentials = new BasicCredentialsProvider();
+            }
+            try {
+                credentials.setCredentials(new AuthScope(host, Integer.parseInt(port)), new UsernamePasswordCredentials(user, password));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring the credentials of proxy [{}], invalid port [{}]", host, port);
+            }
+        }
+        return credentials;
+    }
+
+    private static class CatalogTemplate implements JsonTemplate {
+
+        private List<String> repositories;
+    }
+
+    private static class Endpoint {
+
+        private final String scheme;
+        private final HttpRequestFactory requestFactory;
+
+        private Endpoint(String scheme, HttpRequestFactory requestFactory) {
+            this.scheme = scheme;
+            this.requestFactory = requestFactory;
+        }
+
+        private GenericUrl resolve(String registry, String path) {
+            return new GenericUrl(scheme + "://" + registry + path);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds the requests running at the same time against a registry, backing off when it rate limits them.
+ *
+ * The limit starts at the maximum. It's halved when the registry answers 429 Too Many Requests, once per burst as the
+ * requests already running are likely to be turned down as well, and grows back by one every time as many requests as
+ * the limit succeeded. Concurrency then stays around what the registry accepts, the way TCP congestion control does.
+ *
+ * Maven creates many wagons during a build while the registry's limit is for all of them, there's a throttle per
+ * registry in the JVM.
+ */
+public class RegistryThrottle {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryThrottle.class);
+
+    private static final Map<String, RegistryThrottle> THROTTLES = new ConcurrentHashMap<>();
+    // requests turned down within this time of a decrease were most likely sent before it
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final String registry;
+    private final int maxConcurrency;
+    private int limit;
+    private int running;
+    private int successes;
+    private long lastDecrease;
+
+    RegistryThrottle(String registry, int maxConcurrency) {
+        this.registry = registry;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.limit = this.maxConcurrency;
+        this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL;
+    }
+
+    /**
+     * @param maxConcurrency only used by the first call for a registry
+     */
+    public static RegistryThrottle forRegistry(String registry, int maxConcurrency) {
+        return THROTTLES.computeIfAbsent(registry, key -> new RegistryThrottle(key, maxConcurrency));
+    }
+
+    /**
+     * Waits until a request can be sent, it must be followed by {@link #release()}
+     */
+    public synchronized void acquire() throws InterruptedIOException {
+        while (running >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+        running++;
+    }
+
+    public synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    public synchronized void succeeded() {
+        if (limit < maxConcurrency && ++successes >= limit) {
+            limit++;
+            successes = 0;
+            notifyAll();
+        }
+    }
+
+    public synchronized void throttled() {
+        long now = System.nanoTime();
+        if (now - lastDecrease < DECREASE_INTERVAL) {
+            return;
+        }
+        lastDecrease = now;
+        successes = 0;
+        if (limit > 1) {
+            limit = Math.max(1, limit / 2);
+            LOG.info("Registry [{}] is rate limiting requests, sending at most {} at a time", registry, limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.cloud.tools.jib.http.ResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries registry requests that were turned down for the time being: 429 Too Many Requests, 408 Request Timeout and
+ * the 5xx a registry answers when it's overloaded or restarting. Other failures, e.g a connection dropped halfway
+ * through a download, are left to the callers as retrying them isn't always safe.
+ *
+ * Retries are delayed by exponential backoff with full jitter so that clients turned down together don't come back
+ * together, unless the registry says when to come back with a Retry-After header. Requests go through the throttle of
+ * their registry, see {@link RegistryThrottle}.
+ */
+public class RetryPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private static final List<Integer> RETRYABLE_STATUS_CODES = Arrays.asList(408, 429, 500, 502, 503, 504);
+
+    /**
+     * @param <E> what else the call throws, e.g {@link com.google.cloud.tools.jib.api.RegistryException}
+     */
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+        T call() throws IOException, E;
+    }
+
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final int maxConcurrency;
+    private final WagonMetrics metrics;
+
+    /**
+     * @param initialBackoff in milliseconds, the first retry is delayed by up to this
+     * @param maxBackoff in milliseconds, retries aren't delayed by more than this. Calls the registry asks to retry later
+     *                   than this fail
+     * @param maxConcurrency of the throttle of registries not seen before
+     */
+    public RetryPolicy(int maxRetries, long initialBackoff, long maxBackoff, int maxConcurrency, WagonMetrics metrics) {
+        this.maxRetries = maxRetries;
+        this.initialBackoff = Math.max(1, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        this.maxConcurrency = maxConcurrency;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param description what the call does, for logging
+     * @return what the call returned, once it succeeded
+     * @throws IOException the last failure of the call if it can't be retried or was retried too many times
+     */
+    public <T, E extends Exception> T call(String registry, String description, Call<T, E> call) throws IOException, E {
+        for (int retry = 0; ; retry++) {
+            try {
+                return callOnce(registry, call);
+            } catch (Exception e) {
+                if (!isRetryable(getStatusCode(e)) || !backOff(registry, description, retry, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the call once through the throttle of the registry, for callers that decide by themselves whether to retry
+     * e.g because they need to find out what the registry got first
+     */
+    public <T, E extends Exception> T callOnce(String registry, Call<T, E> call) throws IOException, E {
+        RegistryThrottle throttle = RegistryThrottle.forRegistry(registry, maxConcurrency);
+        throttle.acquire();
+        try {
+            T result = call.call();
+            throttle.succeeded();
+            return result;
+        } catch (Exception e) {
+            if (getStatusCode(e) == 429) {
+                metrics.increment(WagonMetrics.Counter.Throttled);
+                throttle.throttled();
+            }
+            throw e;
+        } finally {
+            throttle.release();
+        }
+    }
+
+    /**
+     * Waits before a call that failed is retried
+     *
+     * @param retry how many times the call was retried already
+     * @return false if the call was retried too many times or the registry asks to retry later than configured, it
+     * should fail then
+     */
+    public boolean backOff(String registry, String description, int retry, Exception failure) throws InterruptedIOException {
+        long retryAfter = getRetryAfter(failure);
+        // better fail than hold the build for longer than configured
+        if (retry >= maxRetries || retryAfter > maxBackoff) {
+            return false;
+        }
+        long delay = getDelay(retry, retryAfter);
+        int statusCode = getStatusCode(failure);
+        if (statusCode < 0) {
+            LOG.warn("Error during {} on [{}]: {}, retrying in {} ms ({}/{})", description, registry, failure.getMessage(), delay,
+                    retry + 1, maxRetries);
+        } else {
+            LOG.warn("Registry [{}] answered {} to {}, retrying in {} ms ({}/{})", registry, statusCode, description, delay, retry + 1,
+                    maxRetries);
+        }
+        metrics.increment(WagonMetrics.Counter.Retries);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * @param retryAfter what the registry asked for in milliseconds, -1 if it didn't
+     */
+    long getDelay(int retry, long retryAfter) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (retryAfter >= 0) {
+            // clients asked to come back at the same time are still spread a little
+            return retryAfter + random.nextLong(initialBackoff);
+        }
+        long backoff = initialBackoff;
+        for (int i = 0; i < retry && backoff < maxBackoff; i++) {
+            backoff *= 2;
+        }
+        return random.nextLong(Math.min(backoff, maxBackoff) + 1);
+    }
+
+    /**
+     * @return whether the registry may accept the request if it's sent again later
+     */
+    static boolean isRetryable(int statusCode) {
+        return RETRYABLE_STATUS_CODES.contains(statusCode);
+    }
+
+    /**
+     * @return the status code of the response the failure is about, -1 if it isn't about one
+     */
+    static int getStatusCode(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof ResponseException) {
+                return ((ResponseException) t).getStatusCode();
+            }
+            if (t instanceof HttpResponseException) {
+                return ((HttpResponseException) t).getStatusCode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the delay in milliseconds the Retry-After header of the response the failure is about asks for, -1 if
+     * there's none
+     */
+    static long getRetryAfter(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof ResponseException) {
+                return parseRetryAfter(((ResponseException) t).getHeaders());
+            }
+            if (t instanceof HttpResponseException) {
+                return parseRetryAfter(((HttpResponseException) t).getHeaders());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date
+     */
+    static long parseRetryAfter(HttpHeaders headers) {
+        String retryAfter = headers == null ? null : headers.getFirstHeaderStringValue("Retry-After");
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter)));
+        } catch (NumberFormatException e) {
+            try {
+                Instant date = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return Math.max(0, date.toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException invalid) {
+                LOG.debug("Invalid Retry-After header [{}]", retryAfter);
+                return -1;
+            }
+        }
+    }
+}
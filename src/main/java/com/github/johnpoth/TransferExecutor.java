@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.maven.wagon.TransferFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs transfers in the background with a bounded number of them in flight.
+ *
+ * Submitting blocks once the limit is reached so that pending transfers (and the layers they hold on to) can't pile
+ * up. Transfers sharing the same key run one after the other in submission order, transfers with different keys run
+ * concurrently. Failures are kept until {@link #drain()} or {@link #throwFailures()} reports them.
+ *
+ * Virtual threads are used when the JVM supports them.
+ */
+public class TransferExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransferExecutor.class);
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+
+    public TransferExecutor(int concurrency) {
+        this.permits = new Semaphore(Math.max(1, concurrency));
+        this.executor = newExecutorService("wagon-docker-registry-transfer-", Math.max(1, concurrency));
+    }
+
+    /**
+     * Schedules the task, waiting for a slot to free up if needed.
+     *
+     * @param key tasks with the same key are run in the order they were submitted
+     * @param description what to report if the task fails e.g the resource being transferred
+     */
+    public void submit(String key, String description, Task task) throws TransferFailedException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while waiting to transfer " + description);
+        }
+        Runnable runnable = () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.error("Error while transferring [{}]", description, e);
+                failures.add(new Failure(description, e));
+            } finally {
+                permits.release();
+            }
+        };
+        CompletableFuture<Void> tail = tails.compute(key, (k, previous) -> previous == null
+                ? CompletableFuture.runAsync(runnable, executor)
+                : previous.thenRunAsync(runnable, executor));
+        // forget about the key once its last task completes
+        tail.whenComplete((ignored, e) -> tails.remove(key, tail));
+    }
+
+    /**
+     * Runs part of a transfer the caller is waiting for, e.g writing a pulled blob it's reading. The task neither takes a
+     * slot nor is ordered with the submitted ones, it only shares their threads.
+     */
+    public Future<?> execute(Runnable task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Waits for every submitted task to complete.
+     *
+     * @throws TransferFailedException if any of them failed since the last time failures were reported
+     */
+    public void drain() throws TransferFailedException {
+        List<CompletableFuture<Void>> pending = new ArrayList<>(tails.values());
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // tasks report their own failures
+            LOG.debug("Error while waiting for transfers", e);
+        }
+        throwFailures();
+    }
+
+    /**
+     * Reports the tasks that failed so far without waiting for the others.
+     */
+    public void throwFailures() throws TransferFailedException {
+        List<Failure> failed = new ArrayList<>();
+        Failure failure;
+        while ((failure = failures.poll()) != null) {
+            failed.add(failure);
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append(failed.size()).append(" transfer(s) failed: ");
+        for (int i = 0; i < failed.size(); i++) {
+            if (i > 0) {
+                message.append(", ");
+            }
+            message.append('[').append(failed.get(i).description).append("] ").append(failed.get(i).cause.getMessage());
+        }
+        throw new TransferFailedException(message.toString(), failed.get(0).cause);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param concurrency the number of threads to use when virtual threads aren't available, 0 for as many as needed
+     */
+    static ExecutorService newExecutorService(String threadNamePrefix, int concurrency) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Virtual threads aren't available, using a pool of {} threads", concurrency > 0 ? concurrency : "cached");
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return concurrency > 0 ? Executors.newFixedThreadPool(concurrency, threadFactory) : Executors.newCachedThreadPool(threadFactory);
+    }
+
+    public interface Task {
+
+        void run() throws Exception;
+    }
+
+    private static class Failure {
+
+        private final String description;
+        private final Exception cause;
+
+        private Failure(String description, Exception cause) {
+            this.description = description;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import org.apache.maven.wagon.Wagon;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferEventSupport;
+import org.apache.maven.wagon.resource.Resource;
+
+/**
+ * Measures a transfer: bytes sent or received, time to the first byte, duration and throughput, and tells the wagon's
+ * transfer listeners about it.
+ *
+ * Listeners are only told about transfers Maven waits for: Maven swaps its listener from one transfer to the next, a
+ * transfer running in the background would report to the wrong one. Background transfers are measured all the same.
+ */
+public class TransferProgress {
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final Resource resource;
+    private final int requestType;
+    private final TransferEventSupport transferEventSupport;
+    private final Wagon wagon;
+    private final int granularity;
+    private final long interval;
+    private final long start = System.nanoTime();
+    private volatile long firstByte;
+    private volatile long end;
+    private volatile long bytes;
+
+    /**
+     * @param transferEventSupport null if listeners aren't to be told about the transfer
+     */
+    public TransferProgress(Resource resource, int requestType, TransferEventSupport transferEventSupport, Wagon wagon, int granularity,
+                            long interval) {
+        this.resource = resource;
+        this.requestType = requestType;
+        this.transferEventSupport = transferEventSupport;
+        this.wagon = wagon;
+        this.granularity = granularity;
+        this.interval = interval;
+    }
+
+    public Resource getResource() {
+        return resource;
+    }
+
+    public void started() {
+        if (transferEventSupport != null) {
+            transferEventSupport.fireTransferInitiated(new TransferEvent(wagon, resource, TransferEvent.TRANSFER_INITIATED, requestType));
+            transferEventSupport.fireTransferStarted(new TransferEvent(wagon, resource, TransferEvent.TRANSFER_STARTED, requestType));
+        }
+    }
+
+    /**
+     * Measures the data written to the returned stream and reports it to listeners. The stream must be flushed once the
+     * data is written for the last bytes to be reported, closing it closes the given stream.
+     */
+    public OutputStream newOutputStream(OutputStream out) {
+        OutputStream metered = new MeteredOutputStream(out);
+        return transferEventSupport == null ? metered : new FilterProgressOutputStream(metered, transferEventSupport, wagon, resource,
+                TransferEvent.TRANSFER_PROGRESS, requestType, granularity, interval);
+    }
+
+    /**
+     * For data sent some other way: the bytes written to the returned stream are only measured and reported
+     */
+    public OutputStream newOutputStream() {
+        return newOutputStream(NULL_OUTPUT_STREAM);
+    }
+
+    /**
+     * @return the given blob, measuring and reporting the bytes it writes
+     */
+    public Blob newBlob(Blob blob) {
+        return new Blob() {
+            @Override
+            public BlobDescriptor writeTo(OutputStream out) throws IOException {
+                OutputStream progressOut = newOutputStream(out);
+                BlobDescriptor descriptor = blob.writeTo(progressOut);
+                progressOut.flush();
+                return descriptor;
+            }
+
+            @Override
+            public boolean isRetryable() {
+                return blob.isRetryable();
+            }
+        };
+    }
+
+    public void completed() {
+        end = System.nanoTime();
+        if (transferEventSupport != null) {
+            transferEventSupport.fireTransferCompleted(new TransferEvent(wagon, resource, TransferEvent.TRANSFER_COMPLETED, requestType));
+        }
+    }
+
+    public void failed(Exception e) {
+        end = System.nanoTime();
+        if (transferEventSupport != null) {
+            transferEventSupport.fireTransferError(new TransferEvent(wagon, resource, e, requestType));
+        }
+    }
+
+    /**
+     * @return the bytes sent or received so far, bytes sent again when retrying included
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the time in milliseconds until the first byte was sent or received e.g authenticating and checking
+     * blobs, -1 if none was
+     */
+    public long getTimeToFirstByte() {
+        long firstByte = this.firstByte;
+        return firstByte == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstByte - start);
+    }
+
+    /**
+     * @return the time in milliseconds from the start of the transfer to its end, or to now if it's still running
+     */
+    public long getDuration() {
+        long end = this.end;
+        return TimeUnit.NANOSECONDS.toMillis((end == 0 ? System.nanoTime() : end) - start);
+    }
+
+    /**
+     * @return the throughput once data started flowing, leaving out the time to the first byte. 0 if no data was
+     * transferred
+     */
+    public long getBytesPerSecond() {
+        long firstByte = this.firstByte;
+        if (firstByte == 0) {
+            return 0;
+        }
+        long end = this.end;
+        long nanos = Math.max(1, (end == 0 ? System.nanoTime() : end) - firstByte);
+        return (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+
+    @Override
+    public String toString() {
+        if (firstByte == 0) {
+            return "no data in " + getDuration() + " ms";
+        }
+        return formatBytes(bytes) + " in " + getDuration() + " ms (" + formatBytes(getBytesPerSecond()) + "/s), first byte after "
+                + getTimeToFirstByte() + " ms";
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format(Locale.ROOT, "%.1f %sB", bytes / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+    }
+
+    private class MeteredOutputStream extends FilterOutputStream {
+
+        private MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count(len);
+        }
+
+        private void count(int count) {
+            if (firstByte == 0) {
+                firstByte = System.nanoTime();
+            }
+            bytes += count;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the time of gets and puts goes, phase by phase, along with bytes transferred, retries, cache hits and missing
+ * manifests.
+ *
+ * Maven creates a wagon for every repository and often for every transfer, the metrics are those of the whole JVM i.e
+ * of the build. They're registered with the platform MBean server under {@value #OBJECT_NAME} and can be logged once
+ * the build is over, see {@link #logSummaryOnExit()}.
+ */
+public class WagonMetrics implements WagonMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WagonMetrics.class);
+
+    public static final String OBJECT_NAME = "com.github.johnpoth:type=WagonMetrics";
+
+    private static final WagonMetrics INSTANCE = register(new WagonMetrics());
+
+    public enum Phase {
+        /**
+         * Getting a token or setting up credentials for an image repository
+         */
+        Authenticate,
+        /**
+         * GET and HEAD requests for manifests
+         */
+        GetManifest,
+        /**
+         * Downloading layers and image configurations. Layers downloaded in a single request are unpacked as they come in,
+         * which is part of this phase
+         */
+        PullBlob,
+        /**
+         * Decompressing and extracting layers that were already downloaded, or taken from the blob cache
+         */
+        Unpack,
+        /**
+         * Archiving and compressing files into layers
+         */
+        Pack,
+        /**
+         * Checking whether the registry has a blob and uploading it if it doesn't
+         */
+        PushBlob,
+        PushManifest
+    }
+
+    public enum Counter {
+        /**
+         * Bytes of the layers downloaded, as stored in the registry i.e compressed
+         */
+        BytesDownloaded,
+        /**
+         * Bytes of the blobs uploaded, including bytes sent again by retries
+         */
+        BytesUploaded,
+        Retries,
+        /**
+         * 429 Too Many Requests responses
+         */
+        Throttled,
+        /**
+         * Blob uploads skipped because the known blob cache says the registry has them
+         */
+        KnownBlobHits,
+        BlobCacheHits,
+        MetadataCacheHits,
+        /**
+         * Manifests the registry doesn't have, e.g Maven looking for an artifact in every repository
+         */
+        ManifestsNotFound
+    }
+
+    private final LongAdder[] phaseCounts = newAdders(Phase.values().length);
+    private final LongAdder[] phaseNanos = newAdders(Phase.values().length);
+    private final AtomicLong[] phaseMaxNanos = new AtomicLong[Phase.values().length];
+    private final LongAdder[] counters = newAdders(Counter.values().length);
+    private final AtomicBoolean summaryOnExit = new AtomicBoolean();
+
+    WagonMetrics() {
+        for (int i = 0; i < phaseMaxNanos.length; i++) {
+            phaseMaxNanos[i] = new AtomicLong();
+        }
+    }
+
+    public static WagonMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param start when the phase started, from {@link System#nanoTime()}
+     */
+    public void record(Phase phase, long start) {
+        long nanos = System.nanoTime() - start;
+        phaseCounts[phase.ordinal()].increment();
+        phaseNanos[phase.ordinal()].add(nanos);
+        phaseMaxNanos[phase.ordinal()].accumulateAndGet(nanos, Math::max);
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public void add(Counter counter, long value) {
+        counters[counter.ordinal()].add(value);
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Logs the summary when the JVM exits, i.e at the end of the build. Only the first call does anything
+     */
+    public void logSummaryOnExit() {
+        if (summaryOnExit.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> LOG.info(getSummary()), "wagon-docker-registry-metrics"));
+        }
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            counts.put(phase.name(), phaseCounts[phase.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimes() {
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            times.put(phase.name(), TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()].sum()));
+        }
+        return times;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMaxTimes() {
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            times.put(phase.name(), TimeUnit.NANOSECONDS.toMillis(phaseMaxNanos[phase.ordinal()].get()));
+        }
+        return times;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            values.put(counter.name(), get(counter));
+        }
+        return values;
+    }
+
+    /**
+     * @return the counters, then a line for each phase that ran
+     */
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder("Registry transfers: ")
+                .append(TransferProgress.formatBytes(get(Counter.BytesDownloaded))).append(" downloaded, ")
+                .append(TransferProgress.formatBytes(get(Counter.BytesUploaded))).append(" uploaded, ")
+                .append(get(Counter.Retries)).append(" retries, ")
+                .append(get(Counter.Throttled)).append(" throttled, ")
+                .append(get(Counter.KnownBlobHits)).append(" known blob hits, ")
+                .append(get(Counter.BlobCacheHits)).append(" blob cache hits, ")
+                .append(get(Counter.MetadataCacheHits)).append(" metadata cache hits, ")
+                .append(get(Counter.ManifestsNotFound)).append(" manifests not found");
+        for (Phase phase : Phase.values()) {
+            long count = phaseCounts[phase.ordinal()].sum();
+            if (count > 0) {
+                summary.append(String.format("%n  %-13s %6d x %9d ms, max %7d ms", phase.name(), count,
+                        TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()].sum()),
+                        TimeUnit.NANOSECONDS.toMillis(phaseMaxNanos[phase.ordinal()].get())));
+            }
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < phaseCounts.length; i++) {
+            phaseCounts[i].reset();
+            phaseNanos[i].reset();
+            phaseMaxNanos[i].set(0);
+        }
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static WagonMetrics register(WagonMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // e.g the wagon was loaded by another class realm as well
+            LOG.debug("Metrics of another copy of the wagon are already registered as [{}]", OBJECT_NAME);
+        } catch (JMException | SecurityException e) {
+            LOG.debug("Error registering metrics as [{}]", OBJECT_NAME, e);
+        }
+        return metrics;
+    }
+}
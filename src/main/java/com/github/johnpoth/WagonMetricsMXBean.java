@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.Map;
+
+/**
+ * What {@link WagonMetrics} exposes through JMX, under {@value WagonMetrics#OBJECT_NAME}. Maps are keyed by the names
+ * of {@link WagonMetrics.Phase} and {@link WagonMetrics.Counter}.
+ */
+public interface WagonMetricsMXBean {
+
+    /**
+     * @return how many times each phase ran
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return the time in milliseconds spent in each phase, summed over the threads running it
+     */
+    Map<String, Long> getPhaseTimes();
+
+    /**
+     * @return the longest time in milliseconds a single run of each phase took
+     */
+    Map<String, Long> getPhaseMaxTimes();
+
+    Map<String, Long> getCounters();
+
+    String getSummary();
+
+    void reset();
+}
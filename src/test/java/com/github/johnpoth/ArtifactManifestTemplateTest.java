@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.Collections;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.api.buildplan.ImageFormat;
+import com.google.cloud.tools.jib.image.json.OciManifestTemplate;
+import com.google.cloud.tools.jib.image.json.V22ManifestTemplate;
+import com.google.cloud.tools.jib.json.JsonTemplateMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class ArtifactManifestTemplateTest {
+
+    private static final String CONFIG = "sha256:1111111111111111111111111111111111111111111111111111111111111111";
+    private static final String LAYER = "sha256:2222222222222222222222222222222222222222222222222222222222222222";
+
+    @Test
+    void writesDockerManifests() throws Exception {
+        JsonNode manifest = toJson(newManifest(ImageFormat.Docker));
+        assertEquals(2, manifest.get("schemaVersion").asInt());
+        assertEquals(V22ManifestTemplate.MANIFEST_MEDIA_TYPE, manifest.get("mediaType").asText());
+        assertEquals("application/vnd.docker.container.image.v1+json", manifest.get("config").get("mediaType").asText());
+        assertEquals("application/vnd.docker.image.rootfs.diff.tar.gzip", manifest.get("layers").get(0).get("mediaType").asText());
+        assertEquals("application/vnd.docker.image.rootfs.diff.tar", manifest.get("layers").get(1).get("mediaType").asText());
+        assertLayers(manifest);
+    }
+
+    @Test
+    void writesOciManifests() throws Exception {
+        JsonNode manifest = toJson(newManifest(ImageFormat.OCI));
+        assertEquals(OciManifestTemplate.MANIFEST_MEDIA_TYPE, manifest.get("mediaType").asText());
+        assertEquals("application/vnd.oci.image.config.v1+json", manifest.get("config").get("mediaType").asText());
+        assertEquals("application/vnd.oci.image.layer.v1.tar+gzip", manifest.get("layers").get(0).get("mediaType").asText());
+        assertEquals("application/vnd.oci.image.layer.v1.tar", manifest.get("layers").get(1).get("mediaType").asText());
+        assertLayers(manifest);
+    }
+
+    @Test
+    void isReadByJib() throws Exception {
+        String json = JsonTemplateMapper.toUtf8String(newManifest(ImageFormat.OCI));
+        OciManifestTemplate manifest = JsonTemplateMapper.readJson(json, OciManifestTemplate.class);
+        assertEquals(CONFIG, manifest.getContainerConfiguration().getDigest().toString());
+        assertEquals(LAYER, manifest.getLayers().get(0).getDigest().toString());
+        assertEquals("a-1.0.jar", manifest.getLayers().get(0).getAnnotations().get(ArtifactManifestTemplate.ANNOTATION_TITLE));
+        assertEquals(LayerCompression.None, LayerCompression.of(manifest.getLayers().get(1)));
+    }
+
+    private static void assertLayers(JsonNode manifest) {
+        assertEquals(CONFIG, manifest.get("config").get("digest").asText());
+        assertEquals(10, manifest.get("config").get("size").asLong());
+        assertFalse(manifest.get("config").has("annotations"));
+        JsonNode layer = manifest.get("layers").get(0);
+        assertEquals(LAYER, layer.get("digest").asText());
+        assertEquals(20, layer.get("size").asLong());
+        assertEquals("a-1.0.jar", layer.get("annotations").get(ArtifactManifestTemplate.ANNOTATION_TITLE).asText());
+        assertFalse(manifest.get("layers").get(1).has("annotations"));
+        // the image format isn't part of the manifest
+        assertFalse(manifest.has("imageFormat"));
+    }
+
+    private static ArtifactManifestTemplate newManifest(ImageFormat imageFormat) throws Exception {
+        ArtifactManifestTemplate manifest = new ArtifactManifestTemplate(imageFormat);
+        manifest.setContainerConfiguration(10, DescriptorDigest.fromDigest(CONFIG));
+        manifest.addLayer(LayerCompression.Gzip, 20, DescriptorDigest.fromDigest(LAYER),
+                Collections.singletonMap(ArtifactManifestTemplate.ANNOTATION_TITLE, "a-1.0.jar"));
+        manifest.addLayer(LayerCompression.None, 30, DescriptorDigest.fromDigest(LAYER), null);
+        return manifest;
+    }
+
+    private static JsonNode toJson(ArtifactManifestTemplate manifest) throws Exception {
+        return new ObjectMapper().readTree(JsonTemplateMapper.toUtf8String(manifest));
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.Arrays;
+import java.util.Collections;
+import com.google.cloud.tools.jib.event.EventHandlers;
+import com.google.cloud.tools.jib.http.Authorization;
+import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BearerTokenCacheTest {
+
+    private final FailoverHttpClient httpClient = new FailoverHttpClient(true, true, ignored -> {
+    });
+    private RegistryStub registry;
+
+    @BeforeEach
+    void startRegistry() throws Exception {
+        registry = new RegistryStub();
+    }
+
+    @AfterEach
+    void stopRegistry() throws Exception {
+        registry.close();
+    }
+
+    @Test
+    void parsesChallenges() {
+        BearerTokenCache.Challenge challenge = BearerTokenCache.Challenge.parse(
+                "Bearer realm=\"https://auth.docker.io/token\",service=\"registry.docker.io\",scope=\"repository:a:pull\"");
+        assertEquals("https://auth.docker.io/token", challenge.getRealm());
+        assertEquals("registry.docker.io", challenge.getService());
+
+        challenge = BearerTokenCache.Challenge.parse("bearer realm=\"https://ghcr.io/token\"");
+        assertEquals("https://ghcr.io/token", challenge.getRealm());
+        assertNull(challenge.getService());
+
+        assertNull(BearerTokenCache.Challenge.parse("Basic realm=\"Registry\""));
+        assertNull(BearerTokenCache.Challenge.parse("Bearer service=\"registry.docker.io\""));
+    }
+
+    @Test
+    void requestsTheScopesOfABatchAtOnce() throws Exception {
+        registry.requireTokens(300);
+        BearerTokenCache tokens = new BearerTokenCache(httpClient, null);
+        String host = registry.getRegistry();
+
+        Authorization a = tokens.getAuthorization(host, "a", Arrays.asList("b", "c")).get();
+        assertEquals(Collections.singletonList(Arrays.asList("repository:a:pull,push", "repository:b:pull,push",
+                "repository:c:pull,push")), registry.getTokenRequests());
+        assertSame(a, tokens.getAuthorization(host, "c", Collections.emptyList()).get());
+        assertEquals(1, registry.getTokenRequests().size());
+
+        // only the repositories without a token are asked for
+        Authorization d = tokens.getAuthorization(host, "d", Arrays.asList("a", "e")).get();
+        assertNotEquals(a.getToken(), d.getToken());
+        assertEquals(Arrays.asList("repository:d:pull,push", "repository:e:pull,push"), registry.getTokenRequests().get(1));
+
+        tokens.invalidate(host, "a");
+        tokens.getAuthorization(host, "a", Collections.emptyList());
+        assertEquals(3, registry.getTokenRequests().size());
+    }
+
+    @Test
+    void onlyPullsFromTheMountSource() throws Exception {
+        registry.requireTokens(300);
+        BearerTokenCache tokens = new BearerTokenCache(httpClient, null);
+        String host = registry.getRegistry();
+
+        Authorization push = tokens.getAuthorization(host, "target", Collections.emptyList()).get();
+        Authorization mount = tokens.getMountAuthorization(host, "target", "source").get();
+        assertNotEquals(push.getToken(), mount.getToken());
+        assertEquals(Arrays.asList("repository:target:pull,push", "repository:source:pull"), registry.getTokenRequests().get(1));
+        // the token of the repository itself is left alone
+        assertSame(push, tokens.getAuthorization(host, "target", Collections.emptyList()).get());
+        assertSame(mount, tokens.getMountAuthorization(host, "target", "source").get());
+        assertEquals(2, registry.getTokenRequests().size());
+    }
+
+    @Test
+    void expiresTokensAheadOfExpiresIn() throws Exception {
+        registry.requireTokens(100);
+        BearerTokenCache tokens = new BearerTokenCache(httpClient, null);
+        String host = registry.getRegistry();
+        assertEquals(RegistryClientPool.NEVER, tokens.getExpiresAt(host, "a"));
+
+        long before = System.currentTimeMillis();
+        tokens.getAuthorization(host, "a", Collections.emptyList());
+        long after = System.currentTimeMillis();
+        assertTrue(tokens.getExpiresAt(host, "a") >= before + 90_000);
+        assertTrue(tokens.getExpiresAt(host, "a") <= after + 90_000);
+
+        // tokens without expires_in are valid for 60 seconds
+        registry.requireTokens(-1);
+        before = System.currentTimeMillis();
+        tokens.getAuthorization(host, "b", Collections.emptyList());
+        after = System.currentTimeMillis();
+        assertTrue(tokens.getExpiresAt(host, "b") >= before + 54_000);
+        assertTrue(tokens.getExpiresAt(host, "b") <= after + 54_000);
+
+        // tokens that already expired are requested again
+        registry.requireTokens(0);
+        tokens.getAuthorization(host, "c", Collections.emptyList());
+        tokens.getAuthorization(host, "c", Collections.emptyList());
+        assertEquals(4, registry.getTokenRequests().size());
+    }
+
+    @Test
+    void skipsRegistriesWithoutAuthentication() throws Exception {
+        BearerTokenCache tokens = new BearerTokenCache(httpClient, null);
+        assertFalse(tokens.getAuthorization(registry.getRegistry(), "a", Collections.emptyList()).isPresent());
+        assertTrue(registry.getTokenRequests().isEmpty());
+    }
+
+    @Test
+    void authorizesJibsClient() {
+        RegistryClient client = RegistryClient.factory(EventHandlers.NONE, "localhost", "repository", httpClient)
+                .newRegistryClient();
+        assertNull(BearerTokenCache.authorizationOf(client));
+        Authorization authorization = Authorization.fromBearerToken("token");
+        // fails when upgrading to a version of Jib the wagon wasn't checked against
+        assertTrue(BearerTokenCache.authorize(client, authorization), "jib-core " + BearerTokenCache.CHECKED_JIB_VERSION);
+        assertSame(authorization, BearerTokenCache.authorizationOf(client));
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.Blobs;
+import com.google.cloud.tools.jib.hash.Digests;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlobCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void cachesCommittedBlobsOnly() throws Exception {
+        BlobCache cache = new BlobCache(directory, 1024);
+        byte[] data = "committed".getBytes(StandardCharsets.UTF_8);
+        DescriptorDigest digest = digest(data);
+        try (BlobCache.Entry entry = cache.newEntry(digest)) {
+            pull(entry.tee(Blobs.from(new ByteArrayInputStream(data))));
+        }
+        assertNull(cache.get(digest));
+
+        try (BlobCache.Entry entry = cache.newEntry(digest)) {
+            pull(entry.tee(Blobs.from(new ByteArrayInputStream(data))));
+            entry.commit();
+        }
+        Path cached = cache.get(digest);
+        assertNotNull(cached);
+        assertArrayEquals(data, Files.readAllBytes(cached));
+    }
+
+    @Test
+    void cachesBlobsWrittenDirectly() throws Exception {
+        BlobCache cache = new BlobCache(directory, 1024);
+        byte[] data = "downloaded".getBytes(StandardCharsets.UTF_8);
+        DescriptorDigest digest = digest(data);
+        try (BlobCache.Entry entry = cache.newEntry(digest)) {
+            Files.write(entry.getFile(), data);
+            entry.commit();
+        }
+        assertArrayEquals(data, Files.readAllBytes(cache.get(digest)));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws Exception {
+        BlobCache cache = new BlobCache(directory, 1500);
+        byte[] first = new byte[1000];
+        byte[] second = new byte[1000];
+        second[0] = 1;
+        add(cache, first);
+        Files.setLastModifiedTime(cache.get(digest(first)), FileTime.fromMillis(0));
+        add(cache, second);
+
+        assertNull(cache.get(digest(first)));
+        assertNotNull(cache.get(digest(second)));
+    }
+
+    @Test
+    void onlyScansWhenOverTheLimit() throws Exception {
+        BlobCache cache = new BlobCache(directory, 1500);
+        add(cache, new byte[1000]);
+        // cached by another build
+        Path other = directory.resolve("blobs").resolve("sha256").resolve("other");
+        Files.write(other, new byte[1000]);
+        Files.setLastModifiedTime(other, FileTime.fromMillis(0));
+
+        add(cache, new byte[100]);
+        assertTrue(Files.exists(other));
+        add(cache, new byte[500]);
+        assertFalse(Files.exists(other));
+    }
+
+    @Test
+    void opensBlobsThatAreStillCached() throws Exception {
+        BlobCache cache = new BlobCache(directory, 1024);
+        byte[] data = "cached".getBytes(StandardCharsets.UTF_8);
+        add(cache, data);
+        try (InputStream in = cache.open(digest(data))) {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+        Files.delete(cache.get(digest(data)));
+        assertNull(cache.open(digest(data)));
+    }
+
+    private static void add(BlobCache cache, byte[] data) throws Exception {
+        try (BlobCache.Entry entry = cache.newEntry(digest(data))) {
+            pull(entry.tee(Blobs.from(new ByteArrayInputStream(data))));
+            entry.commit();
+        }
+    }
+
+    private static void pull(Blob blob) throws Exception {
+        blob.writeTo(new ByteArrayOutputStream());
+    }
+
+    private static DescriptorDigest digest(byte[] data) throws Exception {
+        return Digests.computeDigest(new ByteArrayInputStream(data)).getDigest();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.Blobs;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BlobInputStreamTest {
+
+    private final TransferExecutor executor = new TransferExecutor(1);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void readsWholeBlob() throws Exception {
+        byte[] data = new byte[1_000_003];
+        new Random(42).nextBytes(data);
+        try (BlobInputStream in = new BlobInputStream(Blobs.from(new ByteArrayInputStream(data)), executor)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOUtils.copy(in, out);
+            in.finish();
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    void finishConsumesRemainingBytesAndReportsFailures() {
+        Blob failing = Blobs.from(outputStream -> {
+            outputStream.write(new byte[200_000]);
+            outputStream.close();
+            throw new IOException("digest mismatch");
+        }, false);
+        BlobInputStream in = new BlobInputStream(failing, executor);
+        IOException e = assertThrows(IOException.class, () -> {
+            assertEquals(0, in.read());
+            in.finish();
+        });
+        assertEquals("digest mismatch", e.getMessage());
+        in.close();
+    }
+}
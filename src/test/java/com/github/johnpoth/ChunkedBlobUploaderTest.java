@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.hash.Digests;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChunkedBlobUploaderTest {
+
+    private final WagonMetrics metrics = new WagonMetrics();
+    private final RetryPolicy retries = new RetryPolicy(3, 1, 10, 4, metrics);
+    private RegistryHttpClient http;
+    private RegistryStub registry;
+
+    @BeforeEach
+    void startRegistry() throws Exception {
+        registry = new RegistryStub();
+        http = new RegistryHttpClient(true, true);
+    }
+
+    @AfterEach
+    void stopRegistry() throws Exception {
+        try {
+            http.close();
+        } finally {
+            registry.close();
+        }
+    }
+
+    @Test
+    void resumesFailedChunks() throws Exception {
+        byte[] data = randomBytes(10_000);
+        registry.failAfter("PATCH", 3, 503, 2);
+        ByteArrayOutputStream progress = new ByteArrayOutputStream();
+        assertTrue(upload(new ChunkedBlobUploader(http, retries, 1024), data, progress));
+        assertArrayEquals(data, registry.getBlob("a", digestOf(data).toString()));
+        // the chunk sent again isn't reported twice
+        assertArrayEquals(data, progress.toByteArray());
+        assertEquals(2, metrics.get(WagonMetrics.Counter.Retries));
+    }
+
+    @Test
+    void tellsEmptyRangesApart() throws Exception {
+        // registries answer 0-0 both with no bytes and with one
+        assertEquals(0, ChunkedBlobUploader.parseReceived("0-0", 0));
+        assertEquals(1, ChunkedBlobUploader.parseReceived("0-0", 1));
+        assertEquals(100, ChunkedBlobUploader.parseReceived("0-99", 1));
+        assertEquals(100, ChunkedBlobUploader.parseReceived("bytes=0-99", 0));
+        assertThrows(IOException.class, () -> ChunkedBlobUploader.parseReceived("0-", 0));
+
+        byte[] data = randomBytes(3);
+        registry.failAfter("PATCH", 1, 503, 1);
+        ByteArrayOutputStream progress = new ByteArrayOutputStream();
+        assertTrue(upload(new ChunkedBlobUploader(http, retries, 1), data, progress));
+        assertArrayEquals(data, registry.getBlob("a", digestOf(data).toString()));
+        assertArrayEquals(data, progress.toByteArray());
+    }
+
+    @Test
+    void trustsChunksWithoutRange() throws Exception {
+        byte[] data = randomBytes(10_000);
+        registry.omitChunkRanges();
+        registry.failAfter("PATCH", 3, 503, 1);
+        ByteArrayOutputStream progress = new ByteArrayOutputStream();
+        assertTrue(upload(new ChunkedBlobUploader(http, retries, 1024), data, progress));
+        assertArrayEquals(data, registry.getBlob("a", digestOf(data).toString()));
+        assertArrayEquals(data, progress.toByteArray());
+    }
+
+    @Test
+    void givesUpWithoutProgress() throws Exception {
+        byte[] data = randomBytes(10_000);
+        registry.failAfter("PATCH", 1, 503, 100);
+        assertThrows(IOException.class, () -> upload(new ChunkedBlobUploader(http, retries, 1024), data, null));
+        assertEquals(3, metrics.get(WagonMetrics.Counter.Retries));
+        assertNull(registry.getBlob("a", digestOf(data).toString()));
+    }
+
+    @Test
+    void fallsBackWhenChunksAreNotSupported() throws Exception {
+        byte[] data = randomBytes(10_000);
+        ChunkedBlobUploader uploader = new ChunkedBlobUploader(http, retries, 1024);
+        registry.failNext("PATCH", 405, 1);
+        assertFalse(upload(uploader, data, null));
+        // the registry isn't asked again
+        assertFalse(upload(uploader, data, null));
+        assertNull(registry.getBlob("a", digestOf(data).toString()));
+    }
+
+    @Test
+    void fallsBackWhenDenied() throws Exception {
+        byte[] data = randomBytes(10_000);
+        ChunkedBlobUploader uploader = new ChunkedBlobUploader(http, retries, 1024);
+        registry.failNext("PATCH", 401, 1);
+        assertFalse(upload(uploader, data, null));
+        assertTrue(upload(uploader, data, null));
+        assertArrayEquals(data, registry.getBlob("a", digestOf(data).toString()));
+    }
+
+    private boolean upload(ChunkedBlobUploader uploader, byte[] data, OutputStream progress) throws IOException {
+        try (LayerBuffer layer = new LayerBuffer(data.length)) {
+            layer.getOutputStream().write(data);
+            layer.getOutputStream().close();
+            return uploader.upload(registry.getRegistry(), "a", digestOf(data), layer, null, progress);
+        }
+    }
+
+    private static DescriptorDigest digestOf(byte[] data) throws IOException {
+        return Digests.computeDigest(new ByteArrayInputStream(data)).getDigest();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.maven.wagon.repository.Repository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DockerDistributionWagonTest {
+
+    private static final String A = "org/example/a/1.0/a-1.0.jar";
+    private static final String B = "org/example/b/1.0/b-1.0.jar";
+
+    private RegistryStub registry;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void startRegistry() throws Exception {
+        registry = new RegistryStub();
+    }
+
+    @AfterEach
+    void stopRegistry() throws Exception {
+        registry.close();
+    }
+
+    @Test
+    void getsPrefetchedResourcesFromTheBlobCache() throws Exception {
+        byte[] a = randomBytes(100_000);
+        byte[] b = randomBytes(200_000);
+        DockerDistributionWagon wagon = connect();
+        try {
+            wagon.put(write("a.jar", a), A);
+            wagon.put(write("b.jar", b), B);
+        } finally {
+            wagon.disconnect();
+        }
+
+        wagon = connect();
+        try {
+            long hits = WagonMetrics.getInstance().get(WagonMetrics.Counter.BlobCacheHits);
+            assertEquals(2, wagon.prefetch(Arrays.asList(A, B, "org/example/c/1.0/c-1.0.jar", A)));
+            // prefetched resources don't need the registry anymore
+            registry.failNext("GET", 404, Integer.MAX_VALUE);
+            registry.failNext("HEAD", 404, Integer.MAX_VALUE);
+            File out = directory.resolve("out.jar").toFile();
+            wagon.get(A, out);
+            assertArrayEquals(a, Files.readAllBytes(out.toPath()));
+            wagon.get(B, out);
+            assertArrayEquals(b, Files.readAllBytes(out.toPath()));
+            assertEquals(hits + 2, WagonMetrics.getInstance().get(WagonMetrics.Counter.BlobCacheHits));
+        } finally {
+            wagon.disconnect();
+        }
+    }
+
+    @Test
+    void pushesModuleImagesBeforePutsReturn() throws Exception {
+        byte[] jar = randomBytes(100_000);
+        byte[] pom = randomBytes(1_000);
+        DockerDistributionWagon writer = connect(ImageNamingStrategy.Module);
+        DockerDistributionWagon reader = connect(ImageNamingStrategy.Module);
+        try {
+            File out = directory.resolve("out").toFile();
+            writer.put(write("a.jar", jar), A);
+            reader.get(A, out);
+            assertArrayEquals(jar, Files.readAllBytes(out.toPath()));
+
+            writer.put(write("a.pom", pom), "org/example/a/1.0/a-1.0.pom");
+            reader.get("org/example/a/1.0/a-1.0.pom", out);
+            assertArrayEquals(pom, Files.readAllBytes(out.toPath()));
+            reader.get(A, out);
+            assertArrayEquals(jar, Files.readAllBytes(out.toPath()));
+        } finally {
+            reader.disconnect();
+            writer.disconnect();
+        }
+    }
+
+    @Test
+    void mergesVersionIndexesOfConcurrentDeploys() throws Exception {
+        DockerDistributionWagon first = connect(ImageNamingStrategy.Default, true);
+        DockerDistributionWagon second = connect(ImageNamingStrategy.Default, true);
+        try {
+            first.put(write("a.jar", randomBytes(1_000)), A);
+            second.put(write("a.jar", randomBytes(2_000)), "org/example/a/2.0/a-2.0.jar");
+            assertEquals(Arrays.asList("1.0/"), first.getFileList("org/example/a"));
+            // pushing the second index keeps the version of the first
+            assertEquals(Arrays.asList("1.0/", "2.0/"), second.getFileList("org/example/a"));
+            assertEquals(Arrays.asList("1.0/", "2.0/"), first.getFileList("org/example/a/"));
+        } finally {
+            second.disconnect();
+            first.disconnect();
+        }
+    }
+
+    @Test
+    void listsFilesMissingFromTheVersionIndex() throws Exception {
+        DockerDistributionWagon withoutIndex = connect(ImageNamingStrategy.Module, false);
+        DockerDistributionWagon withIndex = connect(ImageNamingStrategy.Module, true);
+        try {
+            withoutIndex.put(write("a.pom", randomBytes(1_000)), "org/example/a/1.0/a-1.0.pom");
+            withIndex.put(write("a.jar", randomBytes(2_000)), A);
+            assertEquals(Arrays.asList("a-1.0.jar", "a-1.0.pom"), withIndex.getFileList("org/example/a/1.0"));
+        } finally {
+            withIndex.disconnect();
+            withoutIndex.disconnect();
+        }
+    }
+
+    private DockerDistributionWagon connect() throws Exception {
+        return connect(ImageNamingStrategy.Default, false);
+    }
+
+    private DockerDistributionWagon connect(ImageNamingStrategy imageNamingStrategy) throws Exception {
+        return connect(imageNamingStrategy, false);
+    }
+
+    private DockerDistributionWagon connect(ImageNamingStrategy imageNamingStrategy, boolean versionIndex) throws Exception {
+        DockerDistributionWagon wagon = new DockerDistributionWagon();
+        // the way Maven configures the wagon
+        configure(wagon, "cacheDirectory", directory.resolve("cache").toFile());
+        configure(wagon, "imageNamingStrategy", imageNamingStrategy);
+        configure(wagon, "versionIndex", versionIndex);
+        wagon.connect(new Repository("stub", "docker://" + registry.getRegistry() + "/test"));
+        return wagon;
+    }
+
+    private static void configure(DockerDistributionWagon wagon, String name, Object value) throws Exception {
+        Field field = DockerDistributionWagon.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(wagon, value);
+    }
+
+    private File write(String fileName, byte[] data) throws Exception {
+        return Files.write(directory.resolve(fileName), data).toFile();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
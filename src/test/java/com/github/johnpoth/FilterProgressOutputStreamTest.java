@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.events.TransferEventSupport;
+import org.apache.maven.wagon.events.TransferListener;
+import org.apache.maven.wagon.resource.Resource;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class FilterProgressOutputStreamTest {
+
+    @Test
+    void reportsEveryByteInOrderInChunksOfTheGranularity() throws Exception {
+        byte[] data = new byte[100_003];
+        new Random(42).nextBytes(data);
+        RecordingListener listener = new RecordingListener();
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        try (FilterProgressOutputStream out = newStream(written, listener, 4096)) {
+            // writes which don't start at the beginning of the buffer, of sizes unrelated to the granularity
+            for (int offset = 0; offset < data.length; offset += 1000) {
+                byte[] buffer = new byte[1001];
+                int length = Math.min(1000, data.length - offset);
+                System.arraycopy(data, offset, buffer, 1, length);
+                out.write(buffer, 1, length);
+            }
+        }
+        assertArrayEquals(data, written.toByteArray());
+        assertArrayEquals(data, listener.data.toByteArray());
+        assertEquals(data.length / 4096 + 1, listener.lengths.size());
+        for (int i = 0; i < listener.lengths.size() - 1; i++) {
+            assertEquals(4096, listener.lengths.get(i));
+        }
+        assertEquals(1, listener.events.size());
+    }
+
+    @Test
+    void handsLargeWritesOverWithoutCopying() throws Exception {
+        byte[] data = new byte[10_000];
+        RecordingListener listener = new RecordingListener();
+        try (FilterProgressOutputStream out = newStream(new ByteArrayOutputStream(), listener, 4096)) {
+            out.write(data, 0, data.length);
+        }
+        assertEquals(1, listener.lengths.size());
+        assertEquals(data.length, listener.lengths.get(0));
+        assertSame(data, listener.buffers.get(0));
+    }
+
+    private static FilterProgressOutputStream newStream(ByteArrayOutputStream out, TransferListener listener, int granularity) {
+        TransferEventSupport transferEventSupport = new TransferEventSupport();
+        transferEventSupport.addTransferListener(listener);
+        return new FilterProgressOutputStream(out, transferEventSupport, new DockerDistributionWagon(), new Resource("test.jar"),
+                TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET, granularity, Long.MAX_VALUE);
+    }
+
+    private static class RecordingListener implements TransferListener {
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<byte[]> buffers = new ArrayList<>();
+        private final Map<TransferEvent, Boolean> events = new IdentityHashMap<>();
+
+        @Override
+        public void transferProgress(TransferEvent transferEvent, byte[] buffer, int length) {
+            data.write(buffer, 0, length);
+            lengths.add(length);
+            buffers.add(buffer);
+            events.put(transferEvent, true);
+        }
+
+        @Override
+        public void transferInitiated(TransferEvent transferEvent) {
+        }
+
+        @Override
+        public void transferStarted(TransferEvent transferEvent) {
+        }
+
+        @Override
+        public void transferCompleted(TransferEvent transferEvent) {
+        }
+
+        @Override
+        public void transferError(TransferEvent transferEvent) {
+        }
+
+        @Override
+        public void debug(String message) {
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.tools.jib.builder.TimerEventDispatcher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JibEventBridgeTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recordsTimersAndTheirLapsToTheTrace() throws Exception {
+        Path file = directory.resolve("trace.json");
+        ChromeTrace trace = new ChromeTrace(file);
+        JibEventBridge bridge = new JibEventBridge(trace);
+        // the way Jib times pushing a blob
+        try (TimerEventDispatcher pushBlob = new TimerEventDispatcher(bridge.getEventHandlers(), "pushBlob");
+             TimerEventDispatcher requests = pushBlob.subTimer("POST")) {
+            Thread.sleep(5);
+            requests.lap("PATCH");
+            Thread.sleep(5);
+            requests.lap("PUT");
+        }
+        trace.write();
+
+        List<String> names = new ArrayList<>();
+        long threadId = Thread.currentThread().getId();
+        JsonNode root = null;
+        for (JsonNode event : new ObjectMapper().readTree(file.toFile()).get("traceEvents")) {
+            assertEquals(threadId, event.get("tid").asLong());
+            if ("X".equals(event.get("ph").asText())) {
+                names.add(event.get("name").asText());
+                if (root == null) {
+                    root = event;
+                }
+            }
+        }
+        assertEquals(Arrays.asList("pushBlob", "POST", "POST", "PATCH", "PUT"), names);
+        assertTrue(root.get("dur").asLong() >= 10_000);
+    }
+}
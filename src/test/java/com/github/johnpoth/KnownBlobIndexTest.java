@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KnownBlobIndexTest {
+
+    private static final String DIGEST = "sha256:2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void survivesAcrossInstances() {
+        KnownBlobIndex index = new KnownBlobIndex(directory);
+        index.add("localhost:5000", "test/a", DIGEST);
+        index.add("localhost:5000", "test/b", DIGEST);
+        index.remove("localhost:5000", "test/a", DIGEST);
+
+        KnownBlobIndex reloaded = new KnownBlobIndex(directory);
+        assertFalse(reloaded.contains("localhost:5000", "test/a", DIGEST));
+        assertTrue(reloaded.contains("localhost:5000", "test/b", DIGEST));
+        assertEquals(Arrays.asList("test/b"), reloaded.getRepositories("localhost:5000", DIGEST));
+    }
+
+    @Test
+    void keepsRegistriesApart() {
+        KnownBlobIndex index = new KnownBlobIndex(directory);
+        index.add("localhost:5000", "test/a", DIGEST);
+        assertFalse(index.contains("localhost:5001", "test/a", DIGEST));
+        assertTrue(new KnownBlobIndex(directory).getRepositories("localhost:5001", DIGEST).isEmpty());
+    }
+
+    @Test
+    void keepsEntriesAppendedDuringCompaction() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i <= 100_000; i++) {
+            lines.add("test/a sha256:" + i);
+        }
+        Path file = Files.write(directory.resolve("localhost_5000.idx"), lines, StandardCharsets.UTF_8);
+        Thread compaction = new Thread(() -> new KnownBlobIndex(directory).contains("localhost:5000", "test/a", DIGEST));
+        synchronized (KnownBlobIndex.class) {
+            compaction.start();
+            // waits for the compaction to wait for the lock
+            while (compaction.getState() != Thread.State.BLOCKED) {
+                assertTrue(compaction.isAlive(), "compacted without the lock");
+                Thread.sleep(1);
+            }
+            // another build
+            Files.write(file, Arrays.asList("test/b " + DIGEST), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+        compaction.join();
+
+        KnownBlobIndex reloaded = new KnownBlobIndex(directory);
+        assertTrue(reloaded.contains("localhost:5000", "test/b", DIGEST));
+        assertTrue(reloaded.contains("localhost:5000", "test/a", "sha256:100000"));
+        assertFalse(reloaded.contains("localhost:5000", "test/a", "sha256:0"));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.BlobDescriptor;
+import com.google.cloud.tools.jib.hash.Digests;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LayerBufferTest {
+
+    @Test
+    void staysInMemoryBelowLimit() throws Exception {
+        byte[] data = randomBytes(1024);
+        try (LayerBuffer buffer = new LayerBuffer(4096)) {
+            write(buffer.getOutputStream(), data);
+            assertFalse(buffer.isSpilled());
+            assertBlob(data, buffer.toBlob());
+        }
+    }
+
+    @Test
+    void spillsToDiskAboveLimit() throws Exception {
+        byte[] data = randomBytes(100_000);
+        try (LayerBuffer buffer = new LayerBuffer(4096)) {
+            write(buffer.getOutputStream(), data);
+            assertTrue(buffer.isSpilled());
+            assertEquals(data.length, buffer.getSize());
+            Blob blob = buffer.toBlob();
+            assertTrue(blob.isRetryable());
+            // retries write the blob more than once
+            assertBlob(data, blob);
+            assertBlob(data, blob);
+        }
+    }
+
+    @Test
+    void readsFromOffset() throws Exception {
+        byte[] data = randomBytes(100_000);
+        for (long limit : new long[] {4096, 1_000_000}) {
+            try (LayerBuffer buffer = new LayerBuffer(limit)) {
+                write(buffer.getOutputStream(), data);
+                try (InputStream in = buffer.newInputStream(60_000)) {
+                    assertArrayEquals(Arrays.copyOfRange(data, 60_000, data.length), IOUtils.toByteArray(in));
+                }
+            }
+        }
+    }
+
+    private static void write(OutputStream outputStream, byte[] data) throws Exception {
+        for (int off = 0; off < data.length; off += 1000) {
+            outputStream.write(data, off, Math.min(1000, data.length - off));
+        }
+        outputStream.close();
+    }
+
+    private static void assertBlob(byte[] expected, Blob blob) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlobDescriptor descriptor = blob.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(Digests.computeDigest(new ByteArrayInputStream(expected)).getDigest(), descriptor.getDigest());
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
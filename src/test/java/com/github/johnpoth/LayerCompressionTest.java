@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import com.google.cloud.tools.jib.api.buildplan.ImageFormat;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LayerCompressionTest {
+
+    @Test
+    void roundTrips() throws Exception {
+        byte[] data = "wagon-docker-registry wagon-docker-registry wagon-docker-registry".getBytes(StandardCharsets.UTF_8);
+        for (LayerCompression compression : LayerCompression.values()) {
+            for (int level : new int[] {-1, 1}) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = compression.compress(compressed, level)) {
+                    out.write(data);
+                }
+                try (InputStream in = compression.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+                    assertArrayEquals(data, IOUtils.toByteArray(in), compression + " at level " + level);
+                }
+            }
+        }
+    }
+
+    @Test
+    void detectsCompressionFromMediaType() throws Exception {
+        for (LayerCompression compression : LayerCompression.values()) {
+            for (ImageFormat imageFormat : ImageFormat.values()) {
+                assertEquals(compression, LayerCompression.fromMediaType(compression.getMediaType(imageFormat)));
+            }
+        }
+        assertThrows(IOException.class, () -> LayerCompression.fromMediaType(null));
+        assertThrows(IOException.class, () -> LayerCompression.fromMediaType("application/vnd.oci.image.layer.v1.tar+bzip2"));
+        assertThrows(IOException.class, () -> LayerCompression.fromMediaType("application/vnd.docker.image.rootfs.diff.tar.zstd"));
+    }
+
+    @Test
+    void onlyOciImagesHaveZstdLayers() {
+        assertTrue(LayerCompression.Zstd.supports(ImageFormat.OCI));
+        assertFalse(LayerCompression.Zstd.supports(ImageFormat.Docker));
+        assertEquals("application/vnd.oci.image.layer.v1.tar+zstd", LayerCompression.Zstd.getMediaType(ImageFormat.Docker));
+        assertTrue(LayerCompression.Gzip.supports(ImageFormat.Docker));
+    }
+}
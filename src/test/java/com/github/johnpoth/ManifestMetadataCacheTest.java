@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ManifestMetadataCacheTest {
+
+    private static final String MANIFEST = "sha256:1111111111111111111111111111111111111111111111111111111111111111";
+    private static final String CONFIG = "sha256:2222222222222222222222222222222222222222222222222222222222222222";
+    private static final String LAYER = "sha256:3333333333333333333333333333333333333333333333333333333333333333";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTrips() throws Exception {
+        ManifestMetadataCache cache = new ManifestMetadataCache(directory);
+        assertNull(cache.get("localhost:5000", "org/example/a", "1.0"));
+
+        cache.put("localhost:5000", "org/example/a", "1.0", new ManifestMetadataCache.Metadata(DescriptorDigest.fromDigest(MANIFEST),
+                DescriptorDigest.fromDigest(CONFIG), DescriptorDigest.fromDigest(LAYER),
+                "application/vnd.oci.image.layer.v1.tar+gzip", 1234, 1600000000000L));
+        ManifestMetadataCache.Metadata metadata = cache.get("localhost:5000", "org/example/a", "1.0");
+        assertEquals(MANIFEST, metadata.getManifestDigest().toString());
+        assertEquals(CONFIG, metadata.getConfigDigest().toString());
+        assertEquals(LAYER, metadata.getLayerDigest().toString());
+        assertEquals("application/vnd.oci.image.layer.v1.tar+gzip", metadata.getLayerMediaType());
+        assertEquals(1234, metadata.getLayerSize());
+        assertEquals(1600000000000L, metadata.getCreated());
+        assertNull(cache.get("localhost:5001", "org/example/a", "1.0"));
+
+        cache.remove("localhost:5000", "org/example/a", "1.0");
+        assertNull(cache.get("localhost:5000", "org/example/a", "1.0"));
+    }
+
+    @Test
+    void readsEntriesOfOlderVersions() throws Exception {
+        write("1.0.properties", "manifestDigest=" + MANIFEST + "\nconfigDigest=" + CONFIG + "\nlayerDigest=" + LAYER
+                + "\ncreated=1600000000000\n");
+        ManifestMetadataCache.Metadata metadata = new ManifestMetadataCache(directory).get("localhost", "org/example/a", "1.0");
+        assertEquals(LAYER, metadata.getLayerDigest().toString());
+        assertNull(metadata.getLayerMediaType());
+        assertEquals(-1, metadata.getLayerSize());
+        assertEquals(1600000000000L, metadata.getCreated());
+    }
+
+    @Test
+    void ignoresUnreadableEntries() throws Exception {
+        ManifestMetadataCache cache = new ManifestMetadataCache(directory);
+        write("missing.properties", "manifestDigest=" + MANIFEST + "\n");
+        assertNull(cache.get("localhost", "org/example/a", "missing"));
+        write("invalid.properties", "manifestDigest=sha256:nope\nconfigDigest=" + CONFIG + "\nlayerDigest=" + LAYER
+                + "\ncreated=1600000000000\n");
+        assertNull(cache.get("localhost", "org/example/a", "invalid"));
+        write("created.properties", "manifestDigest=" + MANIFEST + "\nconfigDigest=" + CONFIG + "\nlayerDigest=" + LAYER
+                + "\ncreated=yesterday\n");
+        assertNull(cache.get("localhost", "org/example/a", "created"));
+    }
+
+    private void write(String fileName, String content) throws Exception {
+        Path file = directory.resolve("localhost").resolve("org/example/a").resolve(fileName);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.api.buildplan.ImageFormat;
+import com.google.cloud.tools.jib.hash.Digests;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ModuleImageTest {
+
+    @Test
+    void replacesLayersWithTheSameTitle() throws Exception {
+        ModuleImage image = new ModuleImage("org/example/example/1.0/example-1.0.jar", "1.0");
+        image.load(null, null);
+        image.put(layer("example-1.0.jar", "jar"));
+        image.put(layer("example-1.0.pom", "pom"));
+        image.put(layer("example-1.0.jar", "rebuilt jar"));
+
+        assertEquals(Arrays.asList("example-1.0.jar", "example-1.0.pom"), image.getTitles());
+        ModuleImage.Snapshot snapshot = image.snapshot(ImageFormat.OCI);
+        List<ArtifactManifestTemplate.ContentDescriptorTemplate> layers = snapshot.getManifest().getLayers();
+        assertEquals(2, layers.size());
+        assertEquals(digest("rebuilt jar"), layers.get(0).getDigest());
+        assertEquals(digest("diff of rebuilt jar"), snapshot.getConfiguration().getLayerDiffId(0));
+    }
+
+    @Test
+    void onlyChangesArePushed() throws Exception {
+        ModuleImage image = new ModuleImage("org/example/example/1.0/example-1.0.jar", "1.0");
+        image.touch();
+        // nothing is pushed until we know what's in the registry
+        assertNull(image.snapshot(ImageFormat.Docker));
+        image.load(null, null);
+        image.put(layer("example-1.0.jar", "jar"));
+        ModuleImage.Snapshot snapshot = image.snapshot(ImageFormat.Docker);
+        assertNotNull(snapshot);
+        // a put while the snapshot is being pushed
+        image.put(layer("example-1.0.pom", "pom"));
+        image.pushed(snapshot);
+        assertFalse(image.isPushed());
+        image.pushed(image.snapshot(ImageFormat.Docker));
+        assertTrue(image.isPushed());
+        assertNull(image.snapshot(ImageFormat.Docker));
+    }
+
+    private static ModuleImage.Layer layer(String title, String content) throws Exception {
+        return new ModuleImage.Layer(LayerCompression.None, content.length(), digest(content), digest("diff of " + content),
+                Collections.singletonMap(ArtifactManifestTemplate.ANNOTATION_TITLE, title));
+    }
+
+    private static DescriptorDigest digest(String content) throws Exception {
+        return Digests.computeDigest(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))).getDigest();
+    }
+}
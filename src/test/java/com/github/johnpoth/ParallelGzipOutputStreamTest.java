@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class ParallelGzipOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+    private final ForkJoinPool singleThreadPool = new ForkJoinPool(1);
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdown();
+        singleThreadPool.shutdown();
+    }
+
+    @Test
+    void producesValidGzip() throws Exception {
+        for (int size : new int[] {0, 1, BLOCK_SIZE, 3 * BLOCK_SIZE + BLOCK_SIZE / 2, 40 * BLOCK_SIZE}) {
+            byte[] data = data(size);
+            byte[] compressed = compress(data, pool);
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                assertArrayEquals(data, IOUtils.toByteArray(in), "size " + size);
+            }
+        }
+    }
+
+    @Test
+    void outputDoesNotDependOnThreads() throws Exception {
+        byte[] data = data(40 * BLOCK_SIZE + 17);
+        assertArrayEquals(compress(data, singleThreadPool), compress(data, pool));
+    }
+
+    private static byte[] compress(byte[] data, ForkJoinPool pool) throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, -1, BLOCK_SIZE, pool)) {
+            // odd sized writes straddle blocks
+            for (int off = 0; off < data.length; off += 1000) {
+                out.write(data, off, Math.min(1000, data.length - off));
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Half random, half repetitive so that both stored and compressed deflate blocks show up
+     */
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            data[i] = (i / 4096) % 2 == 0 ? (byte) random.nextInt() : (byte) ('a' + i % 7);
+        }
+        return data;
+    }
+}
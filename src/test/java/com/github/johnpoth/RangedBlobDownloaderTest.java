@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.google.cloud.tools.jib.hash.Digests;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RangedBlobDownloaderTest {
+
+    // large enough for three ranges
+    private static final int SIZE = 12 * 1024 * 1024 + 1;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+    private final WagonMetrics metrics = new WagonMetrics();
+    private final RetryPolicy retries = new RetryPolicy(3, 1, 10, 4, metrics);
+    private RegistryHttpClient http;
+    private RegistryStub registry;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void startRegistry() throws Exception {
+        registry = new RegistryStub();
+        http = new RegistryHttpClient(true, true);
+    }
+
+    @AfterEach
+    void stopRegistry() throws Exception {
+        executor.shutdownNow();
+        try {
+            http.close();
+        } finally {
+            registry.close();
+        }
+    }
+
+    @Test
+    void downloadsRanges() throws Exception {
+        RangedBlobDownloader downloader = new RangedBlobDownloader(http, retries, executor, 3);
+        assertTrue(downloader.isRanged(SIZE));
+        assertFalse(downloader.isRanged(4 * 1024 * 1024));
+
+        byte[] data = randomBytes(SIZE);
+        DescriptorDigest digest = digestOf(data);
+        registry.putBlob("a", digest.toString(), data);
+        Path file = directory.resolve("blob");
+        downloader.download(registry.getRegistry(), "a", digest, data.length, file, null);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertEquals(3, registry.getRangeRequests());
+    }
+
+    @Test
+    void retriesRangesTurnedDown() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        DescriptorDigest digest = digestOf(data);
+        registry.putBlob("a", digest.toString(), data);
+        // one of the ranges past the first one
+        registry.failAfter("GET", 1, 429, 1);
+        Path file = directory.resolve("blob");
+        new RangedBlobDownloader(http, retries, executor, 3).download(registry.getRegistry(), "a", digest, data.length, file, null);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertEquals(1, metrics.get(WagonMetrics.Counter.Retries));
+        assertEquals(1, metrics.get(WagonMetrics.Counter.Throttled));
+        assertEquals(3, registry.getRangeRequests());
+    }
+
+    @Test
+    void downloadsSequentiallyWhenRangesAreIgnored() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        DescriptorDigest digest = digestOf(data);
+        registry.putBlob("a", digest.toString(), data);
+        registry.ignoreRanges();
+        Path file = directory.resolve("blob");
+        // left over from an earlier download
+        Files.write(file, new byte[SIZE + 10]);
+        new RangedBlobDownloader(http, retries, executor, 3).download(registry.getRegistry(), "a", digest, data.length, file, null);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertEquals(0, registry.getRangeRequests());
+    }
+
+    @Test
+    void rejectsBlobsNotMatchingTheirDigest() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        DescriptorDigest digest = digestOf(data);
+        byte[] corrupted = data.clone();
+        corrupted[SIZE / 2] ^= 1;
+        registry.putBlob("a", digest.toString(), corrupted);
+        IOException e = assertThrows(IOException.class, () -> new RangedBlobDownloader(http, retries, executor, 3)
+                .download(registry.getRegistry(), "a", digest, data.length, directory.resolve("blob"), null));
+        assertTrue(e.getMessage().contains(digest.toString()), e.getMessage());
+    }
+
+    private static DescriptorDigest digestOf(byte[] data) throws IOException {
+        return Digests.computeDigest(new ByteArrayInputStream(data)).getDigest();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
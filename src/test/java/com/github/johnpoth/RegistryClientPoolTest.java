@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.cloud.tools.jib.event.EventHandlers;
+import com.google.cloud.tools.jib.http.FailoverHttpClient;
+import com.google.cloud.tools.jib.registry.RegistryClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RegistryClientPoolTest {
+
+    private final FailoverHttpClient httpClient = new FailoverHttpClient(false, false, ignored -> {
+    });
+
+    @Test
+    void reusesClientsUntilTheirTokenExpires() throws Exception {
+        RegistryClientPool pool = new RegistryClientPool();
+        AtomicInteger created = new AtomicInteger();
+        RegistryClientPool.ClientFactory valid = () -> {
+            created.incrementAndGet();
+            return new RegistryClientPool.PooledClient(newClient(), System.currentTimeMillis() + 60_000);
+        };
+        RegistryClient client = pool.get("localhost/valid", valid);
+        assertSame(client, pool.get("localhost/valid", valid));
+        assertEquals(1, created.get());
+
+        RegistryClientPool.ClientFactory expired = () -> {
+            created.incrementAndGet();
+            return new RegistryClientPool.PooledClient(newClient(), System.currentTimeMillis() - 1);
+        };
+        assertNotSame(pool.get("localhost/expired", expired), pool.get("localhost/expired", expired));
+        assertEquals(3, created.get());
+
+        pool.invalidate("localhost/valid");
+        assertNotSame(client, pool.get("localhost/valid", valid));
+    }
+
+    @Test
+    void keepsClientsWithoutTokens() throws Exception {
+        RegistryClientPool pool = new RegistryClientPool();
+        RegistryClientPool.ClientFactory factory = () -> new RegistryClientPool.PooledClient(newClient(), RegistryClientPool.NEVER);
+        assertSame(pool.get("localhost/basic", factory), pool.get("localhost/basic", factory));
+    }
+
+    private RegistryClient newClient() {
+        return RegistryClient.factory(EventHandlers.NONE, "localhost", "repository", httpClient).newRegistryClient();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.util.Properties;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.CredentialsProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class RegistryHttpClientTest {
+
+    private static final String[] PROXY_PROPERTIES = {"proxyHost", "proxyPort", "proxyUser", "proxyPassword"};
+
+    private Properties saved;
+
+    @BeforeEach
+    void clearProxies() {
+        saved = new Properties();
+        for (String protocol : new String[] {"http", "https"}) {
+            for (String property : PROXY_PROPERTIES) {
+                String value = System.getProperty(protocol + "." + property);
+                if (value != null) {
+                    saved.setProperty(protocol + "." + property, value);
+                    System.clearProperty(protocol + "." + property);
+                }
+            }
+        }
+    }
+
+    @AfterEach
+    void restoreProxies() {
+        for (String protocol : new String[] {"http", "https"}) {
+            for (String property : PROXY_PROPERTIES) {
+                System.clearProperty(protocol + "." + property);
+            }
+        }
+        saved.forEach((key, value) -> System.setProperty((String) key, (String) value));
+    }
+
+    @Test
+    void authenticatesToProxies() {
+        assertNull(RegistryHttpClient.getProxyCredentials());
+        // proxies without credentials are left to the system defaults
+        System.setProperty("https.proxyHost", "secure.proxy.example.com");
+        assertNull(RegistryHttpClient.getProxyCredentials());
+
+        System.setProperty("https.proxyUser", "secure-user");
+        System.setProperty("https.proxyPassword", "secure-password");
+        System.setProperty("http.proxyHost", "proxy.example.com");
+        System.setProperty("http.proxyPort", "3128");
+        System.setProperty("http.proxyUser", "user");
+        System.setProperty("http.proxyPassword", "password");
+        CredentialsProvider credentials = RegistryHttpClient.getProxyCredentials();
+        Credentials secure = credentials.getCredentials(new AuthScope("secure.proxy.example.com", 443));
+        assertEquals("secure-user", secure.getUserPrincipal().getName());
+        assertEquals("secure-password", secure.getPassword());
+        Credentials plain = credentials.getCredentials(new AuthScope("proxy.example.com", 3128));
+        assertEquals("user", plain.getUserPrincipal().getName());
+        assertNull(credentials.getCredentials(new AuthScope("registry.example.com", 443)));
+    }
+}
@@ -0,0 +1,529 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.cloud.tools.jib.hash.Digests;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process registry implementing the parts of the Distribution API the wagon uses: blob uploads, monolithic or in
+ * chunks, blob mounts, blob downloads with ranges, and manifests. Everything is kept in memory. Nothing is authenticated unless
+ * {@link #requireTokens} is called, in which case the stub also acts as the token server.
+ *
+ * Clients try HTTPS first and only fall back to HTTP once the TLS handshake fails. A plain HTTP server would wait for
+ * a request line that never comes, so connections go through a front socket that turns TLS handshakes down straight
+ * away and relays everything else to the HTTP server.
+ */
+public class RegistryStub implements Closeable {
+
+    private static final int TLS_HANDSHAKE = 0x16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "registry-stub");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final HttpServer server;
+    private final ServerSocket front;
+    private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+    // repository@digest of the blobs each repository holds
+    private final Set<String> links = ConcurrentHashMap.newKeySet();
+    private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+    private final List<List<String>> tokenRequests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger tokens = new AtomicInteger();
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    // null as long as nothing is authenticated
+    private volatile Integer expiresIn;
+    private volatile boolean ignoreRanges;
+    private volatile boolean omitChunkRanges;
+
+    public RegistryStub() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        server = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        front = new ServerSocket(0, 50, loopback);
+        executor.execute(this::accept);
+    }
+
+    /**
+     * @return the registry's host and port, e.g for a docker://localhost:1234/prefix repository URL
+     */
+    public String getRegistry() {
+        return "localhost:" + front.getLocalPort();
+    }
+
+    /**
+     * Turns requests without a bearer token down with a challenge pointing to the stub's token server.
+     *
+     * @param expiresIn the {@code expires_in} of the tokens, negative to leave it out
+     */
+    public void requireTokens(int expiresIn) {
+        this.expiresIn = expiresIn;
+    }
+
+    /**
+     * Answers the next requests of a method with an error instead of handling them
+     *
+     * @param count how many requests to turn down
+     */
+    public void failNext(String method, int statusCode, int count) {
+        failAfter(method, 0, statusCode, count);
+    }
+
+    /**
+     * Like {@link #failNext(String, int, int)} once a number of requests of the method have been handled
+     */
+    public void failAfter(String method, int handled, int statusCode, int count) {
+        failures.put(method, new Failure(handled, statusCode, count));
+    }
+
+    /**
+     * Serves whole blobs whatever their Range header, like some registries do
+     */
+    public void ignoreRanges() {
+        this.ignoreRanges = true;
+    }
+
+    /**
+     * Leaves the Range header out of the replies to chunks of an upload, which some registries do
+     */
+    public void omitChunkRanges() {
+        this.omitChunkRanges = true;
+    }
+
+    /**
+     * @return how many requests for part of a blob were served
+     */
+    public int getRangeRequests() {
+        return rangeRequests.get();
+    }
+
+    /**
+     * Adds a blob to a repository without checking its digest, e.g to serve a corrupted one
+     */
+    public void putBlob(String repository, String digest, byte[] data) {
+        blobs.put(digest, data);
+        links.add(repository + "@" + digest);
+    }
+
+    /**
+     * @return the content of a blob pushed to a repository, null if there isn't any
+     */
+    public byte[] getBlob(String repository, String digest) {
+        return links.contains(repository + "@" + digest) ? blobs.get(digest) : null;
+    }
+
+    /**
+     * @return the scopes of each token request received so far
+     */
+    public List<List<String>> getTokenRequests() {
+        return tokenRequests;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            front.close();
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void accept() {
+        while (!front.isClosed()) {
+            Socket client;
+            try {
+                client = front.accept();
+            } catch (IOException e) {
+                return;
+            }
+            executor.execute(() -> relay(client));
+        }
+    }
+
+    private void relay(Socket client) {
+        try {
+            PushbackInputStream in = new PushbackInputStream(client.getInputStream());
+            int first = in.read();
+            if (first == TLS_HANDSHAKE) {
+                client.getOutputStream().write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            if (first < 0) {
+                return;
+            }
+            in.unread(first);
+            try (Socket backend = new Socket(InetAddress.getLoopbackAddress(), server.getAddress().getPort())) {
+                executor.execute(() -> pipe(in, backend));
+                pipe(backend.getInputStream(), client);
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    private static void pipe(InputStream in, Socket out) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            OutputStream outputStream = out.getOutputStream();
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            out.shutdownOutput();
+        } catch (IOException e) {
+            // either side went away
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            int uploadsIndex = path.indexOf("/blobs/uploads");
+            int blobsIndex = path.indexOf("/blobs/");
+            int manifestsIndex = path.indexOf("/manifests/");
+            if (path.equals("/token")) {
+                handleToken(exchange);
+            } else if (expiresIn != null && !isAuthorized(exchange)) {
+                exchange.getResponseHeaders().add("WWW-Authenticate",
+                        "Bearer realm=\"http://" + getRegistry() + "/token\",service=\"registry-stub\"");
+                sendError(exchange, 401, "UNAUTHORIZED");
+            } else if (path.equals("/v2/") || path.equals("/v2")) {
+                send(exchange, 200, "{}".getBytes(StandardCharsets.UTF_8));
+            } else if (shouldFail(method)) {
+                Failure failure = failures.get(method);
+                if (failure.statusCode == 429) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                }
+                sendError(exchange, failure.statusCode, "UNAVAILABLE");
+            } else if (uploadsIndex > 0) {
+                handleUpload(exchange, method, path.substring(4, uploadsIndex),
+                        path.substring(uploadsIndex + "/blobs/uploads".length()), query);
+            } else if (blobsIndex > 0) {
+                handleBlob(exchange, method, path.substring(4, blobsIndex), path.substring(blobsIndex + "/blobs/".length()));
+            } else if (manifestsIndex > 0) {
+                handleManifest(exchange, method, path.substring(4, manifestsIndex), path.substring(manifestsIndex + "/manifests/".length()));
+            } else {
+                sendError(exchange, 404, "NOT_FOUND");
+            }
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "UNKNOWN");
+        }
+    }
+
+    private boolean shouldFail(String method) {
+        Failure failure = failures.get(method);
+        return failure != null && failure.handled.getAndDecrement() <= 0 && failure.remaining.getAndDecrement() > 0;
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        List<String> scopes = new ArrayList<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("scope=")) {
+                    scopes.add(URLDecoder.decode(parameter.substring("scope=".length()), StandardCharsets.UTF_8.name()));
+                }
+            }
+        }
+        tokenRequests.add(scopes);
+        Integer tokenExpiresIn = expiresIn;
+        String token = "{\"token\":\"token-" + tokens.incrementAndGet() + "\""
+                + (tokenExpiresIn != null && tokenExpiresIn >= 0 ? ",\"expires_in\":" + tokenExpiresIn : "") + "}";
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        send(exchange, 200, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return authorization != null && authorization.startsWith("Bearer token-");
+    }
+
+    private void handleUpload(HttpExchange exchange, String method, String repository, String session, Map<String, String> query)
+            throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        if ("POST".equals(method)) {
+            String mount = query.get("mount");
+            if (mount != null && links.contains(query.get("from") + "@" + mount)) {
+                links.add(repository + "@" + mount);
+                headers.add("Location", "/v2/" + repository + "/blobs/" + mount);
+                headers.add("Docker-Content-Digest", mount);
+                send(exchange, 201, null);
+                return;
+            }
+            String id = UUID.randomUUID().toString();
+            ByteArrayOutputStream upload = new ByteArrayOutputStream();
+            String digest = query.get("digest");
+            if (digest != null) {
+                copy(exchange.getRequestBody(), upload);
+                commit(exchange, repository, digest, upload);
+                return;
+            }
+            uploads.put(id, upload);
+            headers.add("Location", "/v2/" + repository + "/blobs/uploads/" + id);
+            headers.add("Docker-Upload-UUID", id);
+            headers.add("Range", "0-0");
+            send(exchange, 202, null);
+            return;
+        }
+        String id = session.startsWith("/") ? session.substring(1) : session;
+        ByteArrayOutputStream upload = uploads.get(id);
+        if (upload == null) {
+            sendError(exchange, 404, "BLOB_UPLOAD_UNKNOWN");
+            return;
+        }
+        synchronized (upload) {
+            switch (method) {
+                case "PATCH":
+                    String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+                    if (contentRange != null && Long.parseLong(contentRange.substring(0, contentRange.indexOf('-'))) != upload.size()) {
+                        sendError(exchange, 416, "BLOB_UPLOAD_INVALID");
+                        return;
+                    }
+                    copy(exchange.getRequestBody(), upload);
+                    sendUploadStatus(exchange, repository, id, upload, 202, !omitChunkRanges);
+                    return;
+                case "GET":
+                    sendUploadStatus(exchange, repository, id, upload, 204, true);
+                    return;
+                case "PUT":
+                    copy(exchange.getRequestBody(), upload);
+                    uploads.remove(id);
+                    commit(exchange, repository, query.get("digest"), upload);
+                    return;
+                case "DELETE":
+                    uploads.remove(id);
+                    send(exchange, 204, null);
+                    return;
+                default:
+                    sendError(exchange, 405, "UNSUPPORTED");
+            }
+        }
+    }
+
+    /**
+     * Tells how much of the upload the registry got
+     */
+    private static void sendUploadStatus(HttpExchange exchange, String repository, String id, ByteArrayOutputStream upload, int status,
+                                         boolean withRange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Location", "/v2/" + repository + "/blobs/uploads/" + id);
+        if (withRange) {
+            headers.add("Range", "0-" + Math.max(0, upload.size() - 1));
+        }
+        send(exchange, status, null);
+    }
+
+    private void commit(HttpExchange exchange, String repository, String digest, ByteArrayOutputStream upload) throws IOException {
+        byte[] data = upload.toByteArray();
+        if (digest == null || !digest.equals(digestOf(data))) {
+            sendError(exchange, 400, "DIGEST_INVALID");
+            return;
+        }
+        blobs.put(digest, data);
+        links.add(repository + "@" + digest);
+        exchange.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/" + digest);
+        exchange.getResponseHeaders().add("Docker-Content-Digest", digest);
+        send(exchange, 201, null);
+    }
+
+    private void handleBlob(HttpExchange exchange, String method, String repository, String digest) throws IOException {
+        byte[] data = blobs.get(digest);
+        if (data == null || !links.contains(repository + "@" + digest)) {
+            sendError(exchange, 404, "BLOB_UNKNOWN");
+            return;
+        }
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Docker-Content-Digest", digest);
+        headers.add("Accept-Ranges", "bytes");
+        if ("HEAD".equals(method)) {
+            sendHead(exchange, data.length);
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && !ignoreRanges) {
+            int separator = range.indexOf('-');
+            int start = Integer.parseInt(range.substring("bytes=".length(), separator));
+            int end = Math.min(data.length - 1, Integer.parseInt(range.substring(separator + 1)));
+            headers.add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            rangeRequests.incrementAndGet();
+            send(exchange, 206, Arrays.copyOfRange(data, start, end + 1));
+            return;
+        }
+        send(exchange, 200, data);
+    }
+
+    private void handleManifest(HttpExchange exchange, String method, String repository, String reference) throws IOException {
+        if ("PUT".equals(method)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            copy(exchange.getRequestBody(), body);
+            Manifest manifest = new Manifest(body.toByteArray(), exchange.getRequestHeaders().getFirst("Content-Type"));
+            String digest = digestOf(manifest.content);
+            manifests.put(repository + ":" + reference, manifest);
+            manifests.put(repository + "@" + digest, manifest);
+            exchange.getResponseHeaders().add("Location", "/v2/" + repository + "/manifests/" + digest);
+            exchange.getResponseHeaders().add("Docker-Content-Digest", digest);
+            send(exchange, 201, null);
+            return;
+        }
+        Manifest manifest = manifests.get(repository + (reference.startsWith("sha256:") ? "@" : ":") + reference);
+        if (manifest == null) {
+            sendError(exchange, 404, "MANIFEST_UNKNOWN");
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", manifest.mediaType);
+        exchange.getResponseHeaders().add("Docker-Content-Digest", digestOf(manifest.content));
+        if ("HEAD".equals(method)) {
+            sendHead(exchange, manifest.content.length);
+        } else {
+            send(exchange, 200, manifest.content);
+        }
+    }
+
+    private static String digestOf(byte[] data) throws IOException {
+        return Digests.computeDigest(new ByteArrayInputStream(data)).getDigest().toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8.name()),
+                            URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8.name()));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        send(exchange, status, ("{\"errors\":[{\"code\":\"" + code + "\",\"message\":\"" + code + "\"}]}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * HEAD responses carry the length of what a GET would return, which clients check
+     */
+    private static void sendHead(HttpExchange exchange, long length) throws IOException {
+        drain(exchange);
+        exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        drain(exchange);
+        if (body == null || body.length == 0 || "HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+        exchange.close();
+    }
+
+    /**
+     * Reads what's left of the request so that the connection can be reused
+     */
+    private static void drain(HttpExchange exchange) throws IOException {
+        copy(exchange.getRequestBody(), new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    private static class Failure {
+
+        private final AtomicInteger handled;
+        private final int statusCode;
+        private final AtomicInteger remaining;
+
+        private Failure(int handled, int statusCode, int count) {
+            this.handled = new AtomicInteger(handled);
+            this.statusCode = statusCode;
+            this.remaining = new AtomicInteger(count);
+        }
+    }
+
+    private static class Manifest {
+
+        private final byte[] content;
+        private final String mediaType;
+
+        private Manifest(byte[] content, String mediaType) {
+            this.content = content;
+            this.mediaType = mediaType;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    void retriesRequestsTurnedDown() throws Exception {
+        WagonMetrics metrics = new WagonMetrics();
+        RetryPolicy retries = new RetryPolicy(3, 1, 10, 4, metrics);
+        AtomicInteger calls = new AtomicInteger();
+        String result = retries.call("retries.example.com", "GET", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw turnedDown(503, null);
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+        assertEquals(2, metrics.get(WagonMetrics.Counter.Retries));
+
+        // the registry won't take it sooner than configured
+        calls.set(0);
+        assertThrows(HttpResponseException.class, () -> retries.call("retries.example.com", "GET", () -> {
+            calls.incrementAndGet();
+            throw turnedDown(429, "60");
+        }));
+        assertEquals(1, calls.get());
+        assertEquals(1, metrics.get(WagonMetrics.Counter.Throttled));
+
+        calls.set(0);
+        assertThrows(HttpResponseException.class, () -> retries.call("retries.example.com", "GET", () -> {
+            calls.incrementAndGet();
+            throw turnedDown(404, null);
+        }));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void delaysRetries() {
+        RetryPolicy retries = new RetryPolicy(5, 100, 1000, 4, new WagonMetrics());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(retries.getDelay(0, -1) <= 100);
+            assertTrue(retries.getDelay(10, -1) <= 1000);
+            long delay = retries.getDelay(0, 2000);
+            assertTrue(delay >= 2000 && delay < 2100);
+        }
+        assertEquals(2000, RetryPolicy.parseRetryAfter(new HttpHeaders().set("Retry-After", "2")));
+        assertEquals(0, RetryPolicy.parseRetryAfter(new HttpHeaders().set("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(new HttpHeaders().set("Retry-After", "soon")));
+    }
+
+    @Test
+    void halvesConcurrencyWhenThrottled() {
+        RegistryThrottle throttle = new RegistryThrottle("throttle.example.com", 8);
+        throttle.throttled();
+        assertEquals(4, throttle.getLimit());
+        // requests that were already sent are turned down as well
+        throttle.throttled();
+        assertEquals(4, throttle.getLimit());
+        for (int i = 0; i < 4; i++) {
+            throttle.succeeded();
+        }
+        assertEquals(5, throttle.getLimit());
+    }
+
+    private static IOException turnedDown(int statusCode, String retryAfter) {
+        HttpHeaders headers = new HttpHeaders();
+        if (retryAfter != null) {
+            headers.set("Retry-After", retryAfter);
+        }
+        return new HttpResponseException.Builder(statusCode, null, headers).build();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import com.google.cloud.tools.jib.blob.Blob;
+import com.google.cloud.tools.jib.blob.Blobs;
+import org.apache.maven.wagon.events.TransferEvent;
+import org.apache.maven.wagon.resource.Resource;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TransferProgressTest {
+
+    @Test
+    void leavesTheTimeToFirstByteOutOfTheThroughput() throws Exception {
+        TransferProgress progress = newProgress();
+        Thread.sleep(50);
+        assertEquals(-1, progress.getTimeToFirstByte());
+        assertEquals(0, progress.getBytesPerSecond());
+        assertTrue(progress.toString().startsWith("no data in "), progress.toString());
+
+        OutputStream out = progress.newOutputStream();
+        out.write(new byte[1000]);
+        Thread.sleep(100);
+        out.write(new byte[1000], 0, 999);
+        out.write(0);
+        progress.completed();
+
+        assertEquals(2000, progress.getBytes());
+        long timeToFirstByte = progress.getTimeToFirstByte();
+        long duration = progress.getDuration();
+        assertTrue(timeToFirstByte >= 50, String.valueOf(timeToFirstByte));
+        assertTrue(duration >= timeToFirstByte + 100, duration + " ms, first byte after " + timeToFirstByte + " ms");
+        // data flowed for 100 ms at least, which is less than the whole duration
+        long bytesPerSecond = progress.getBytesPerSecond();
+        assertTrue(bytesPerSecond <= 20_000, String.valueOf(bytesPerSecond));
+        assertTrue(bytesPerSecond > progress.getBytes() * 1000 / duration, bytesPerSecond + " B/s in " + duration + " ms");
+
+        // completed transfers don't age
+        Thread.sleep(20);
+        assertEquals(duration, progress.getDuration());
+        assertEquals(bytesPerSecond, progress.getBytesPerSecond());
+        assertTrue(progress.toString().startsWith("2.0 KB in " + duration + " ms"), progress.toString());
+    }
+
+    @Test
+    void countsBytesSentAgain() throws Exception {
+        TransferProgress progress = newProgress();
+        Blob blob = progress.newBlob(Blobs.from("data"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        blob.writeTo(out);
+        // a retry
+        blob.writeTo(out);
+        assertEquals("datadata", out.toString("UTF-8"));
+        assertEquals(8, progress.getBytes());
+    }
+
+    @Test
+    void formatsBytes() {
+        assertEquals("0 B", TransferProgress.formatBytes(0));
+        assertEquals("1023 B", TransferProgress.formatBytes(1023));
+        assertEquals("1.5 KB", TransferProgress.formatBytes(1536));
+        assertEquals("1.0 MB", TransferProgress.formatBytes(1024 * 1024));
+        assertEquals("2.0 GB", TransferProgress.formatBytes(2L * 1024 * 1024 * 1024));
+    }
+
+    private static TransferProgress newProgress() {
+        return new TransferProgress(new Resource("org/example/a/1.0/a-1.0.jar"), TransferEvent.REQUEST_PUT, null, null, 1, 0);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.johnpoth;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WagonMetricsTest {
+
+    @Test
+    void recordsPhasesAndCounters() {
+        WagonMetrics metrics = new WagonMetrics();
+        long now = System.nanoTime();
+        metrics.record(WagonMetrics.Phase.PullBlob, now - TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.record(WagonMetrics.Phase.PullBlob, now - TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.add(WagonMetrics.Counter.BytesDownloaded, 2048);
+        metrics.increment(WagonMetrics.Counter.ManifestsNotFound);
+
+        assertEquals(2L, metrics.getPhaseCounts().get("PullBlob"));
+        assertEquals(0L, metrics.getPhaseCounts().get("PushBlob"));
+        assertTrue(metrics.getPhaseTimes().get("PullBlob") >= 40);
+        assertTrue(metrics.getPhaseMaxTimes().get("PullBlob") >= 30);
+        assertEquals(1L, metrics.getCounters().get("ManifestsNotFound"));
+        String summary = metrics.getSummary();
+        assertTrue(summary.contains("2.0 KB downloaded"), summary);
+        assertTrue(summary.contains("PullBlob"), summary);
+        assertFalse(summary.contains("PushBlob"), summary);
+
+        metrics.reset();
+        assertEquals(0L, metrics.getPhaseCounts().get("PullBlob"));
+        assertEquals(0L, metrics.get(WagonMetrics.Counter.BytesDownloaded));
+    }
+
+    @Test
+    void isExportedThroughJmx() throws Exception {
+        WagonMetrics metrics = WagonMetrics.getInstance();
+        metrics.increment(WagonMetrics.Counter.Retries);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        TabularData counters = (TabularData) server.getAttribute(new ObjectName(WagonMetrics.OBJECT_NAME), "Counters");
+        CompositeData retries = counters.get(new Object[] {"Retries"});
+        assertEquals(metrics.get(WagonMetrics.Counter.Retries), retries.get("value"));
+    }
+}